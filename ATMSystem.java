@@ -1,5 +1,43 @@
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.security.spec.InvalidKeySpecException;
+import java.time.Instant;
 import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
 
 // Enum for transaction type
 enum TransactionType {
@@ -13,22 +51,59 @@ class InsufficientFundsException extends Exception {
     }
 }
 
-// Card class with PIN
+// Salted PBKDF2 PIN hashing; deliberately slow, compared in constant time
+final class PinHash {
+    static final int DEFAULT_ITERATIONS = 10_000;
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private PinHash() {}
+
+    static byte[] newSalt() {
+        byte[] salt = new byte[16];
+        RANDOM.nextBytes(salt);
+        return salt;
+    }
+
+    static byte[] hash(String pin, byte[] salt, int iterations) {
+        PBEKeySpec spec = new PBEKeySpec(pin.toCharArray(), salt, iterations, 256);
+        try {
+            return SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256").generateSecret(spec).getEncoded();
+        } catch (NoSuchAlgorithmException | InvalidKeySpecException e) {
+            throw new IllegalStateException("PIN hashing unavailable", e);
+        } finally {
+            spec.clearPassword();
+        }
+    }
+
+    static boolean matches(String pin, byte[] salt, int iterations, byte[] expected) {
+        return pin != null && MessageDigest.isEqual(hash(pin, salt, iterations), expected);
+    }
+}
+
+// Card class with PIN, only the salted hash of the PIN is kept
 class Card {
     int cardNumber;
     String userName;
     UUID userId;
-    private String pin;
+    private final byte[] pinSalt;
+    private final byte[] pinHash;
+    private final int hashIterations;
 
     public Card(int cardNumber, String userName, UUID userId, String pin) {
+        this(cardNumber, userName, userId, pin, PinHash.DEFAULT_ITERATIONS);
+    }
+
+    public Card(int cardNumber, String userName, UUID userId, String pin, int hashIterations) {
         this.cardNumber = cardNumber;
         this.userName = userName;
         this.userId = userId;
-        this.pin = pin;
+        this.hashIterations = hashIterations;
+        this.pinSalt = PinHash.newSalt();
+        this.pinHash = PinHash.hash(pin, pinSalt, hashIterations);
     }
 
     public boolean validatePin(String inputPin) {
-        return this.pin.equals(inputPin);
+        return PinHash.matches(inputPin, pinSalt, hashIterations, pinHash);
     }
 
     public UUID getUserId() {
@@ -36,93 +111,615 @@ class Card {
     }
 }
 
-// Bank Account class
+// Money is held as long minor units (cents) so balances are exact
+final class Money {
+    private Money() {}
+
+    public static long toMinor(double amount) {
+        return Math.round(amount * 100);
+    }
+
+    public static double toMajor(long minor) {
+        return minor / 100.0;
+    }
+}
+
+/*
+    Consecutive PIN failures per card in a fixed-size open-addressed table, so memory stays
+    bounded however many cards are tried. A card is probed in a small window of slots; when the
+    window is full, the entry with the fewest failures that is not locked out is evicted.
+*/
+class FailureTracker {
+    private static final int PROBES = 8;
+
+    private final int[] cards;
+    private final byte[] failures;
+    private final long[] lockedUntil;
+    private final boolean[] used;
+    private final int mask;
+    private final int maxFailures;
+    private final long lockoutMillis;
+
+    public FailureTracker(int capacityPow2, int maxFailures, long lockoutMillis) {
+        this.cards = new int[capacityPow2];
+        this.failures = new byte[capacityPow2];
+        this.lockedUntil = new long[capacityPow2];
+        this.used = new boolean[capacityPow2];
+        this.mask = capacityPow2 - 1;
+        this.maxFailures = maxFailures;
+        this.lockoutMillis = lockoutMillis;
+    }
+
+    public synchronized boolean isLocked(int card, long now) {
+        int slot = find(card);
+        return slot >= 0 && lockedUntil[slot] > now;
+    }
+
+    /*
+        Reserves one PIN attempt before the (slow) check runs: false if the card is locked, otherwise
+        the attempt is already counted as a failure, locking the card when it is the last one allowed.
+        recordSuccess clears it. Concurrent guesses therefore get at most maxFailures checks in total.
+    */
+    public synchronized boolean tryAcquireAttempt(int card, long now) {
+        int slot = find(card);
+        if (slot < 0) {
+            slot = claim(card, now);
+        }
+        if (lockedUntil[slot] > now) {
+            return false;
+        }
+        if (lockedUntil[slot] != 0) {
+            failures[slot] = 0; // previous lockout served
+            lockedUntil[slot] = 0;
+        }
+        failures[slot] = (byte) Math.min(Byte.MAX_VALUE, failures[slot] + 1);
+        if (failures[slot] >= maxFailures) {
+            lockedUntil[slot] = now + lockoutMillis;
+        }
+        return true;
+    }
+
+    public synchronized void recordSuccess(int card) {
+        int slot = find(card);
+        if (slot >= 0) {
+            used[slot] = false;
+        }
+    }
+
+    private int find(int card) {
+        int base = mix(card);
+        for (int i = 0; i < PROBES; i++) {
+            int slot = (base + i) & mask;
+            if (used[slot] && cards[slot] == card) return slot;
+        }
+        return -1;
+    }
+
+    private int claim(int card, long now) {
+        int base = mix(card);
+        int victim = -1;
+        for (int i = 0; i < PROBES; i++) {
+            int slot = (base + i) & mask;
+            if (!used[slot]) {
+                victim = slot;
+                break;
+            }
+            boolean locked = lockedUntil[slot] > now;
+            if (!locked && (victim < 0 || lockedUntil[victim] > now || failures[slot] < failures[victim])) {
+                victim = slot;
+            } else if (victim < 0 || (lockedUntil[victim] > now && lockedUntil[slot] < lockedUntil[victim])) {
+                victim = slot; // whole window locked: replace the lockout that ends first
+            }
+        }
+        used[victim] = true;
+        cards[victim] = card;
+        failures[victim] = 0;
+        lockedUntil[victim] = 0;
+        return victim;
+    }
+
+    private static int mix(int card) {
+        int h = card * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
+
+/*
+    Authentication subsystem: slow hashed PIN checks guarded by per-card lockout, plus a bounded,
+    expiring cache of session tokens so the operations of an open session are authorized without
+    hashing the PIN again.
+*/
+class PinAuthenticator {
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private static final class SessionEntry {
+        final Card card;
+        final long expiresAt;
+
+        SessionEntry(Card card, long expiresAt) {
+            this.card = card;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private final FailureTracker failures;
+    private final long sessionTtlMillis;
+    private final Map<String, SessionEntry> sessions;
+
+    public PinAuthenticator() {
+        this(10_000, 3, 15 * 60_000L, 5 * 60_000L);
+    }
+
+    public PinAuthenticator(int maxSessions, int maxFailures, long lockoutMillis, long sessionTtlMillis) {
+        this.failures = new FailureTracker(Integer.highestOneBit(Math.max(1024, maxSessions) * 2), maxFailures, lockoutMillis);
+        this.sessionTtlMillis = sessionTtlMillis;
+        // access-ordered so the least recently used session is evicted first once full
+        this.sessions = new LinkedHashMap<String, SessionEntry>(16, 0.75f, true) {
+            protected boolean removeEldestEntry(Map.Entry<String, SessionEntry> eldest) {
+                return size() > maxSessions;
+            }
+        };
+    }
+
+    // Full PIN check, honouring lockout; the attempt is counted before hashing so concurrent guesses cannot overrun it
+    public boolean authenticate(Card card, String pin) {
+        if (!failures.tryAcquireAttempt(card.cardNumber, System.currentTimeMillis())) {
+            return false;
+        }
+        if (card.validatePin(pin)) {
+            failures.recordSuccess(card.cardNumber);
+            return true;
+        }
+        return false;
+    }
+
+    // Authenticates once and returns a session token, or null
+    public String login(Card card, String pin) {
+        if (!authenticate(card, pin)) {
+            return null;
+        }
+        byte[] bytes = new byte[16];
+        RANDOM.nextBytes(bytes);
+        String token = Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+        synchronized (sessions) {
+            sessions.put(token, new SessionEntry(card, System.currentTimeMillis() + sessionTtlMillis));
+        }
+        return token;
+    }
+
+    // Cheap check for every operation inside a session; returns the card or null if expired/unknown
+    public Card session(String token) {
+        synchronized (sessions) {
+            SessionEntry entry = sessions.get(token);
+            if (entry == null) return null;
+            if (entry.expiresAt <= System.currentTimeMillis()) {
+                sessions.remove(token);
+                return null;
+            }
+            return entry.card;
+        }
+    }
+
+    public void logout(String token) {
+        synchronized (sessions) {
+            sessions.remove(token);
+        }
+    }
+
+    public boolean isLocked(Card card) {
+        return failures.isLocked(card.cardNumber, System.currentTimeMillis());
+    }
+}
+
+// Bank Account class, balance updated lock-free by CAS
 class Account {
     UUID accountNumber;
-    private double balance;
+    private final AtomicLong balance;
+    final TransactionLog log = new TransactionLog();
 
     public Account(UUID accountNumber, double balance) {
         this.accountNumber = accountNumber;
-        this.balance = balance;
+        this.balance = new AtomicLong(Money.toMinor(balance));
     }
 
-    public synchronized void debit(double amount) throws InsufficientFundsException {
-        if (balance >= amount) {
-            balance -= amount;
-        } else {
+    public void debit(double amount) throws InsufficientFundsException {
+        if (!tryDebitMinor(Money.toMinor(amount))) {
             throw new InsufficientFundsException("Insufficient balance");
         }
     }
 
-    public synchronized void deposit(double amount) {
-        balance += amount;
+    public void deposit(double amount) {
+        depositMinor(Money.toMinor(amount));
+    }
+
+    public double getBalance() {
+        return Money.toMajor(balance.get());
+    }
+
+    public boolean tryDebitMinor(long amount) {
+        long current;
+        do {
+            current = balance.get();
+            if (current < amount) {
+                return false;
+            }
+        } while (!balance.compareAndSet(current, current - amount));
+        return true;
     }
 
-    public synchronized double getBalance() {
-        return balance;
+    public void depositMinor(long amount) {
+        balance.addAndGet(amount);
+    }
+
+    public long getBalanceMinor() {
+        return balance.get();
     }
 }
 
-// Transaction class
+// Transaction class, materialized on demand from an account's TransactionLog
 class Transaction {
     private final UUID userId;
-    private final double amount;
+    private final long sequence;
+    private final long amount; // minor units
     private final TransactionType type;
-    private final UUID transactionId;
+    private final long timestamp;
 
-    public Transaction(UUID userId, double amount, TransactionType type) {
-        this.transactionId = UUID.randomUUID();
+    public Transaction(UUID userId, long sequence, long amount, TransactionType type, long timestamp) {
         this.userId = userId;
+        this.sequence = sequence;
         this.amount = amount;
         this.type = type;
+        this.timestamp = timestamp;
+    }
+
+    public long getSequence() {
+        return sequence;
+    }
+
+    public double getAmount() {
+        return Money.toMajor(amount);
+    }
+
+    public TransactionType getType() {
+        return type;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
     }
 
     public String toString() {
-        return type + " of $" + amount + " for user " + userId + " (TXN: " + transactionId + ")";
+        return type + " of $" + Money.toMajor(amount) + " for user " + userId + " (TXN: " + sequence + ")";
+    }
+}
+
+/*
+    Append-only per-account log stored column-wise in fixed size chunks of primitive arrays.
+    Appends are serialized by the caller (Ledger stripe lock); readers never lock: they read the
+    volatile size and may then read any entry below it, since entries are never modified.
+    Timestamps are kept non-decreasing so time ranges are found by binary search, and debit/credit
+    totals per UTC day are rolled up on append for O(log days) statement and daily-limit checks.
+*/
+class TransactionLog {
+    private static final int CHUNK_BITS = 8;
+    private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+    private static final long DAY_MILLIS = 86_400_000L;
+
+    private volatile long[][] amounts = new long[1][];
+    private volatile long[][] timestamps = new long[1][];
+    private volatile byte[][] types = new byte[1][];
+    private volatile int size;
+
+    // one entry per day with activity; the latest day's totals may lag its newest append
+    private volatile long[] days = new long[4];
+    private volatile long[] dayDebits = new long[4];
+    private volatile long[] dayCredits = new long[4];
+    private volatile int dayCount;
+
+    // caller must hold the ledger stripe lock for this account
+    void append(long amount, TransactionType type, long timestamp) {
+        int index = size;
+        if (index > 0) {
+            timestamp = Math.max(timestamp, timestamp(index - 1)); // clock steps back: keep order
+        }
+        rollUp(Math.floorDiv(timestamp, DAY_MILLIS), amount, type);
+        int chunk = index >>> CHUNK_BITS;
+        if (chunk == amounts.length) {
+            amounts = Arrays.copyOf(amounts, chunk * 2);
+            timestamps = Arrays.copyOf(timestamps, chunk * 2);
+            types = Arrays.copyOf(types, chunk * 2);
+        }
+        if (amounts[chunk] == null) {
+            amounts[chunk] = new long[CHUNK_SIZE];
+            timestamps[chunk] = new long[CHUNK_SIZE];
+            types[chunk] = new byte[CHUNK_SIZE];
+        }
+        amounts[chunk][index & CHUNK_MASK] = amount;
+        timestamps[chunk][index & CHUNK_MASK] = timestamp;
+        types[chunk][index & CHUNK_MASK] = (byte) type.ordinal();
+        size = index + 1; // publish
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public long amount(int i) {
+        return amounts[i >>> CHUNK_BITS][i & CHUNK_MASK];
+    }
+
+    public long timestamp(int i) {
+        return timestamps[i >>> CHUNK_BITS][i & CHUNK_MASK];
+    }
+
+    public TransactionType type(int i) {
+        return TransactionType.values()[types[i >>> CHUNK_BITS][i & CHUNK_MASK]];
+    }
+
+    // First index with timestamp >= millis, within the first `limit` entries
+    public int lowerBound(long millis, int limit) {
+        int lo = 0, hi = limit;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (timestamp(mid) < millis) lo = mid + 1;
+            else hi = mid;
+        }
+        return lo;
+    }
+
+    public long debitedOnDay(long epochDay) {
+        int i = findDay(epochDay);
+        return i < 0 ? 0 : dayDebits[i];
+    }
+
+    public long creditedOnDay(long epochDay) {
+        int i = findDay(epochDay);
+        return i < 0 ? 0 : dayCredits[i];
+    }
+
+    static long epochDay(long millis) {
+        return Math.floorDiv(millis, DAY_MILLIS);
+    }
+
+    private int findDay(long epochDay) {
+        int count = dayCount;
+        long[] d = days;
+        int i = Arrays.binarySearch(d, 0, count, epochDay);
+        return i < 0 ? -1 : i;
+    }
+
+    private void rollUp(long day, long amount, TransactionType type) {
+        int n = dayCount;
+        if (n == 0 || days[n - 1] != day) {
+            if (n == days.length) {
+                days = Arrays.copyOf(days, n * 2);
+                dayDebits = Arrays.copyOf(dayDebits, n * 2);
+                dayCredits = Arrays.copyOf(dayCredits, n * 2);
+            }
+            days[n] = day;
+            dayCount = ++n;
+        }
+        if (type == TransactionType.DEBIT) dayDebits[n - 1] += amount;
+        else dayCredits[n - 1] += amount;
+    }
+}
+
+/*
+    Ledger engine behind InMemoryBankingService.
+    Balances move by CAS on the Account; log appends take one of a fixed set of striped locks,
+    so sessions on different accounts practically never contend and no lock is allocated per account.
+*/
+class Ledger {
+    private static final int STRIPES = 256;
+
+    private final Map<UUID, Account> accounts = new ConcurrentHashMap<>();
+    private final ReentrantLock[] stripes = new ReentrantLock[STRIPES];
+
+    public Ledger() {
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new ReentrantLock();
+        }
+    }
+
+    public void register(UUID userId, Account account) {
+        accounts.put(userId, account);
+    }
+
+    public boolean isRegistered(UUID userId) {
+        return accounts.containsKey(userId);
+    }
+
+    public Account account(UUID userId) {
+        Account account = accounts.get(userId);
+        if (account == null) {
+            throw new IllegalArgumentException("Unknown user " + userId);
+        }
+        return account;
+    }
+
+    // Returns the time the movement was recorded at, in epoch millis
+    public long deposit(UUID userId, long amount) {
+        requirePositive(amount);
+        Account account = account(userId);
+        account.depositMinor(amount);
+        return record(userId, account, amount, TransactionType.CREDIT, System.currentTimeMillis());
+    }
+
+    public long debit(UUID userId, long amount) throws InsufficientFundsException {
+        requirePositive(amount);
+        Account account = account(userId);
+        if (!account.tryDebitMinor(amount)) {
+            throw new InsufficientFundsException("Insufficient balance");
+        }
+        return record(userId, account, amount, TransactionType.DEBIT, System.currentTimeMillis());
+    }
+
+    public long getBalance(UUID userId) {
+        return account(userId).getBalanceMinor();
+    }
+
+    // Re-applies an already validated movement during journal replay at its original time; no funds check
+    void replay(UUID userId, long amount, TransactionType type, long timestamp) {
+        Account account = account(userId);
+        account.depositMinor(type == TransactionType.CREDIT ? amount : -amount);
+        record(userId, account, amount, type, timestamp);
+    }
+
+    public TransactionLog history(UUID userId) {
+        return account(userId).log;
+    }
+
+    private long record(UUID userId, Account account, long amount, TransactionType type, long timestamp) {
+        ReentrantLock lock = stripes[(userId.hashCode() ^ (userId.hashCode() >>> 16)) & (STRIPES - 1)];
+        lock.lock();
+        try {
+            account.log.append(amount, type, timestamp);
+        } finally {
+            lock.unlock();
+        }
+        return timestamp;
+    }
+
+    private static void requirePositive(long amount) {
+        if (amount <= 0) {
+            throw new IllegalArgumentException("Amount must be positive");
+        }
     }
 }
 
-// Cash Inventory
+/*
+    Cash Inventory
+    Note counts live in primitive arrays, largest denomination first. reach[i][a] says whether
+    a * unit can be paid using only denominations i..n-1 within their counts; the table is rebuilt
+    lazily after the counts change (O(denominations * total / unit)). With it, dispensing picks for each
+    denomination the largest count that still leaves a payable remainder, so it never fails on an
+    amount that has some feasible mix (e.g. 60 = 3 x 20) and never backtracks.
+*/
 class CashInventory {
-    private final Map<Integer, Integer> denominationMap = new TreeMap<>(Collections.reverseOrder());
+    private final int[] denominations = {100, 50, 20};
+    private final int[] counts = {10, 10, 20};
+    private final int unit;                 // gcd of the denominations
+    private final int[] take;               // scratch for the current dispense
+    private boolean[][] reach = new boolean[0][];
+    private int[] used = new int[0];        // scratch for rebuilds
+    private boolean dirty = true;
 
     public CashInventory() {
-        denominationMap.put(100, 10);
-        denominationMap.put(50, 10);
-        denominationMap.put(20, 20);
+        int g = 0;
+        for (int d : denominations) g = gcd(g, d);
+        unit = g;
+        take = new int[denominations.length];
     }
 
     public synchronized boolean dispenseCash(double amount) {
-        double remaining = amount;
-        Map<Integer, Integer> temp = new HashMap<>();
+        int units = toUnits(amount);
+        if (units < 0 || !isReachable(units)) return false;
 
-        for (int denom : denominationMap.keySet()) {
-            int needed = (int) (remaining / denom);
-            int available = denominationMap.getOrDefault(denom, 0);
-            int used = Math.min(needed, available);
-            if (used > 0) {
-                temp.put(denom, used);
-                remaining -= used * denom;
-            }
+        int remaining = units;
+        for (int i = 0; i < denominations.length; i++) {
+            int d = denominations[i] / unit;
+            int c = Math.min(counts[i], remaining / d);
+            boolean[] rest = reach[i + 1];
+            while (!rest[remaining - c * d]) c--; // terminates: reach[i] guarantees some c works
+            take[i] = c;
+            remaining -= c * d;
         }
 
-        if (remaining > 0.001) return false;
-
-        for (Map.Entry<Integer, Integer> entry : temp.entrySet()) {
-            denominationMap.put(entry.getKey(), denominationMap.get(entry.getKey()) - entry.getValue());
+        for (int i = 0; i < denominations.length; i++) {
+            counts[i] -= take[i];
         }
+        dirty = true;
         return true;
     }
 
+    // True if the amount can currently be paid out exactly; lets the UI offer only valid amounts
+    public synchronized boolean isDispensable(double amount) {
+        int units = toUnits(amount);
+        return units >= 0 && isReachable(units);
+    }
+
+    // All dispensable amounts up to max, ascending
+    public synchronized int[] dispensableAmounts(int max) {
+        rebuildIfDirty();
+        boolean[] all = reach[0];
+        int limit = Math.min(max / unit, all.length - 1);
+        int n = 0;
+        for (int a = 1; a <= limit; a++) if (all[a]) n++;
+        int[] amounts = new int[n];
+        n = 0;
+        for (int a = 1; a <= limit; a++) if (all[a]) amounts[n++] = a * unit;
+        return amounts;
+    }
+
     public synchronized void addCash(double amount) {
-        int denom = 20;
-        int count = (int) (amount / denom);
-        denominationMap.put(denom, denominationMap.getOrDefault(denom, 0) + count);
+        addNotes(20, (int) (amount / 20));
+    }
+
+    public synchronized void addNotes(int denomination, int count) {
+        for (int i = 0; i < denominations.length; i++) {
+            if (denominations[i] == denomination) {
+                counts[i] += count;
+                dirty = true;
+                return;
+            }
+        }
+        throw new IllegalArgumentException("Unsupported denomination " + denomination);
+    }
+
+    public synchronized double getTotalCash() {
+        long total = 0;
+        for (int i = 0; i < denominations.length; i++) total += (long) denominations[i] * counts[i];
+        return total;
+    }
+
+    private boolean isReachable(int units) {
+        rebuildIfDirty();
+        return units < reach[0].length && reach[0][units];
+    }
+
+    // Whole-unit amount or -1 if it cannot be expressed in notes at all
+    private int toUnits(double amount) {
+        long whole = Math.round(amount);
+        if (amount <= 0 || Math.abs(amount - whole) > 0.001 || whole % unit != 0) return -1;
+        return (int) Math.min(Integer.MAX_VALUE, whole / unit);
+    }
+
+    private void rebuildIfDirty() {
+        if (!dirty) return;
+        int n = denominations.length;
+        int total = 0;
+        for (int i = 0; i < n; i++) total += denominations[i] / unit * counts[i];
+
+        if (reach.length != n + 1 || reach[0].length < total + 1) {
+            reach = new boolean[n + 1][total + 1];
+            used = new int[total + 1];
+        }
+        int size = reach[0].length;
+        Arrays.fill(reach[n], false);
+        reach[n][0] = true;
+        for (int i = n - 1; i >= 0; i--) {
+            // bounded-count reachability: used[a] = notes of denomination i spent to reach a
+            boolean[] next = reach[i + 1];
+            boolean[] cur = reach[i];
+            int d = denominations[i] / unit;
+            for (int a = 0; a < size; a++) {
+                if (next[a]) {
+                    cur[a] = true;
+                    used[a] = 0;
+                } else if (a >= d && cur[a - d] && used[a - d] < counts[i]) {
+                    cur[a] = true;
+                    used[a] = used[a - d] + 1;
+                } else {
+                    cur[a] = false;
+                }
+            }
+        }
+        dirty = false;
     }
 
-    public double getTotalCash() {
-        return denominationMap.entrySet().stream()
-                .mapToDouble(e -> e.getKey() * e.getValue()).sum();
+    private static int gcd(int a, int b) {
+        return b == 0 ? a : gcd(b, a % b);
     }
 }
 
@@ -136,40 +733,463 @@ interface BankingService {
 
 // In-memory banking service implementation
 class InMemoryBankingService implements BankingService {
-    private final Map<UUID, Account> accounts = new ConcurrentHashMap<>();
-    private final Map<UUID, List<Transaction>> transactions = new ConcurrentHashMap<>();
+    final Ledger ledger = new Ledger();
+    final PinAuthenticator authenticator = new PinAuthenticator();
 
     public void register(UUID userId, Account account) {
-        accounts.put(userId, account);
+        ledger.register(userId, account);
     }
 
     public boolean authenticate(Card card, String pin) {
-        return card.validatePin(pin);
+        return authenticator.authenticate(card, pin);
     }
 
     public void deposit(UUID userId, double amount) {
-        accounts.get(userId).deposit(amount);
-        transactions.computeIfAbsent(userId, k -> new ArrayList<>())
-                    .add(new Transaction(userId, amount, TransactionType.CREDIT));
+        ledger.deposit(userId, Money.toMinor(amount));
     }
 
     public void debit(UUID userId, double amount) throws InsufficientFundsException {
-        accounts.get(userId).debit(amount);
-        transactions.computeIfAbsent(userId, k -> new ArrayList<>())
-                    .add(new Transaction(userId, amount, TransactionType.DEBIT));
+        ledger.debit(userId, Money.toMinor(amount));
     }
 
     public double getBalance(UUID userId) {
-        return accounts.get(userId).getBalance();
+        return Money.toMajor(ledger.getBalance(userId));
     }
 
+    // Read-only view over the log as of this call; entries are materialized on access, nothing is copied
     public List<Transaction> getTransactions(UUID userId) {
-        return transactions.getOrDefault(userId, new ArrayList<>());
+        TransactionLog log = ledger.history(userId);
+        return view(userId, log, 0, log.size(), false);
+    }
+
+    // Most recent n transactions, newest first
+    public List<Transaction> lastTransactions(UUID userId, int n) {
+        TransactionLog log = ledger.history(userId);
+        int size = log.size();
+        return view(userId, log, Math.max(0, size - n), size, true);
+    }
+
+    // Transactions with from <= time < to, oldest first; page with subList, which stays lazy
+    public List<Transaction> transactionsBetween(UUID userId, Instant from, Instant to) {
+        TransactionLog log = ledger.history(userId);
+        int size = log.size();
+        int start = log.lowerBound(from.toEpochMilli(), size);
+        int end = log.lowerBound(to.toEpochMilli(), size);
+        return view(userId, log, start, Math.max(start, end), false);
+    }
+
+    // Total debited on the given instant's UTC day, for daily withdrawal limits
+    public double debitedOn(UUID userId, Instant day) {
+        return Money.toMajor(ledger.history(userId).debitedOnDay(TransactionLog.epochDay(day.toEpochMilli())));
+    }
+
+    private static List<Transaction> view(UUID userId, TransactionLog log, int start, int end, boolean newestFirst) {
+        int size = end - start;
+        return new AbstractList<Transaction>() {
+            public Transaction get(int i) {
+                Objects.checkIndex(i, size);
+                int index = newestFirst ? end - 1 - i : start + i;
+                return new Transaction(userId, index, log.amount(index), log.type(index), log.timestamp(index));
+            }
+
+            public int size() {
+                return size;
+            }
+        };
+    }
+}
+
+/*
+    Durable variant of the in-memory service.
+    Every deposit/debit is applied in memory, appended as a 40 byte record to a memory-mapped journal
+    and only returns once the record is on disk. Syncs are group-committed: whichever caller finds no
+    sync running forces everything written so far, and all callers whose records it covered return
+    together, so concurrent sessions share one fsync instead of paying one each.
+    Usage: register accounts with their opening balances, then call recover() before serving.
+*/
+class JournaledBankingService extends InMemoryBankingService implements Closeable {
+    // uuid (16), amount (8), epoch millis (8), type (4), magic (4)
+    private static final int RECORD_SIZE = 40;
+    private static final int RECORD_MAGIC = 0x4A524E01;
+    private static final long REGION_SIZE = 64L << 20;
+
+    private final FileChannel channel;
+    private final long journaled; // end of the records found at open, the ones recover() replays
+    private boolean recovered;
+    private MappedByteBuffer region;
+    private long regionStart;
+    private long written;    // file offset after the last appended record
+
+    private final Object syncLock = new Object();
+    private long durable;    // file offset up to which records are forced
+    private boolean syncing;
+
+    public JournaledBankingService(Path file) throws IOException {
+        channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        written = scan(null, Long.MAX_VALUE);
+        journaled = written;
+        durable = written;
+        mapRegion(written);
+    }
+
+    private interface RecordVisitor {
+        void visit(UUID userId, long amount, TransactionType type, long timestamp);
+    }
+
+    // Rebuilds balances and histories of registered accounts from the journal, once; later calls do
+    // nothing. Every record is checked first, so a journal naming an unregistered account fails
+    // without applying anything (and recover() may be retried after registering it).
+    public synchronized void recover() throws IOException {
+        if (recovered) {
+            return;
+        }
+        Set<UUID> unknown = new LinkedHashSet<>();
+        scan((userId, amount, type, timestamp) -> {
+            if (!ledger.isRegistered(userId)) unknown.add(userId);
+        }, journaled);
+        if (!unknown.isEmpty()) {
+            throw new IllegalStateException("Journal has records for unregistered accounts " + unknown);
+        }
+        scan(ledger::replay, journaled);
+        recovered = true;
+    }
+
+    @Override
+    public void deposit(UUID userId, double amount) {
+        long minor = Money.toMinor(amount);
+        long at = ledger.deposit(userId, minor);
+        awaitDurable(append(userId, minor, TransactionType.CREDIT, at));
+    }
+
+    @Override
+    public void debit(UUID userId, double amount) throws InsufficientFundsException {
+        long minor = Money.toMinor(amount);
+        long at = ledger.debit(userId, minor);
+        awaitDurable(append(userId, minor, TransactionType.DEBIT, at));
+    }
+
+    private synchronized long append(UUID userId, long amount, TransactionType type, long timestamp) {
+        if (region.remaining() < RECORD_SIZE) {
+            try {
+                region.force();
+                mapRegion(written);
+            } catch (IOException e) {
+                throw new IllegalStateException("Could not extend journal", e);
+            }
+        }
+        region.putLong(userId.getMostSignificantBits());
+        region.putLong(userId.getLeastSignificantBits());
+        region.putLong(amount);
+        region.putLong(timestamp);
+        region.putInt(type.ordinal());
+        region.putInt(RECORD_MAGIC); // written last so a torn record is ignored on replay
+        written += RECORD_SIZE;
+        return written;
+    }
+
+    // syncLock only guards the bookkeeping; the force itself runs outside it, so callers arriving
+    // meanwhile see syncing and wait for it instead of queueing on the monitor
+    private void awaitDurable(long offset) {
+        while (true) {
+            long target;
+            MappedByteBuffer toForce;
+            long from;
+            synchronized (syncLock) {
+                while (syncing && durable < offset) {
+                    try {
+                        syncLock.wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new IllegalStateException("Interrupted waiting for journal sync", e);
+                    }
+                }
+                if (durable >= offset) {
+                    return;
+                }
+                syncing = true;
+                synchronized (this) {
+                    target = written;
+                    toForce = region;
+                    from = Math.max(durable, regionStart) - regionStart;
+                }
+            }
+            boolean forced = false;
+            try {
+                toForce.force((int) from, (int) (target - regionStart - from));
+                forced = true;
+            } finally {
+                synchronized (syncLock) {
+                    if (forced) durable = Math.max(durable, target);
+                    syncing = false;
+                    syncLock.notifyAll();
+                }
+            }
+        }
+    }
+
+    private void mapRegion(long start) throws IOException {
+        region = channel.map(FileChannel.MapMode.READ_WRITE, start, REGION_SIZE);
+        regionStart = start;
+    }
+
+    // Returns the offset after the last complete record before limit, handing each one to visitor when not null
+    private long scan(RecordVisitor visitor, long limit) throws IOException {
+        long offset = 0;
+        long size = Math.min(limit, channel.size());
+        while (offset < size) {
+            MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, offset, Math.min(REGION_SIZE, size - offset));
+            while (buf.remaining() >= RECORD_SIZE) {
+                long msb = buf.getLong();
+                long lsb = buf.getLong();
+                long amount = buf.getLong();
+                long timestamp = buf.getLong();
+                int type = buf.getInt();
+                if (buf.getInt() != RECORD_MAGIC) {
+                    return offset;
+                }
+                if (visitor != null) {
+                    visitor.visit(new UUID(msb, lsb), amount, TransactionType.values()[type], timestamp);
+                }
+                offset += RECORD_SIZE;
+            }
+            if (buf.capacity() < REGION_SIZE) {
+                break;
+            }
+        }
+        return offset;
+    }
+
+    public synchronized void close() throws IOException {
+        region.force();
+        channel.close();
+    }
+}
+
+// Non-blocking variant of BankingService; debit fails with InsufficientFundsException
+interface AsyncBankingService {
+    CompletableFuture<Boolean> authenticate(Card card, String pin);
+    CompletableFuture<Void> deposit(UUID userId, double amount);
+    CompletableFuture<Void> debit(UUID userId, double amount);
+    CompletableFuture<Double> getBalance(UUID userId);
+}
+
+// One operation on the wire to the core-banking backend; result is the balance in minor units
+class BankingRequest {
+    enum Op { BALANCE, DEPOSIT, DEBIT }
+
+    final Op op;
+    final UUID userId;
+    final long amount;
+    final CompletableFuture<Long> result = new CompletableFuture<>();
+
+    BankingRequest(Op op, UUID userId, long amount) {
+        this.op = op;
+        this.userId = userId;
+        this.amount = amount;
+    }
+}
+
+// A connection to the core-banking system. send must not block; it completes each request's future.
+interface BankingBackend {
+    CompletableFuture<Void> send(List<BankingRequest> batch);
+}
+
+// Local stand-in for a remote backend: a whole batch is answered after one simulated round-trip
+class SimulatedBankingBackend implements BankingBackend {
+    final PinAuthenticator authenticator = new PinAuthenticator(); // the bank's, shared by every client
+    private final Ledger ledger;
+    private final long latencyMicros;
+    private final ScheduledExecutorService network = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "simulated-backend");
+        t.setDaemon(true);
+        return t;
+    });
+    final AtomicLong batches = new AtomicLong();
+
+    public SimulatedBankingBackend(Ledger ledger, long latencyMicros) {
+        this.ledger = ledger;
+        this.latencyMicros = latencyMicros;
+    }
+
+    public CompletableFuture<Void> send(List<BankingRequest> batch) {
+        batches.incrementAndGet();
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        network.schedule(() -> {
+            for (BankingRequest request : batch) {
+                try {
+                    switch (request.op) {
+                        case DEPOSIT:
+                            ledger.deposit(request.userId, request.amount);
+                            break;
+                        case DEBIT:
+                            ledger.debit(request.userId, request.amount);
+                            break;
+                        default:
+                            break;
+                    }
+                    request.result.complete(ledger.getBalance(request.userId));
+                } catch (Exception e) {
+                    request.result.completeExceptionally(e);
+                }
+            }
+            done.complete(null);
+        }, latencyMicros, TimeUnit.MICROSECONDS);
+        return done;
+    }
+}
+
+/*
+    Async client that shares one backend connection between all sessions.
+    Calls are queued; a single sender thread drains whatever has accumulated (up to maxBatch) into
+    one batch and sends it without waiting for earlier batches to be answered, keeping up to
+    maxInFlight batches pipelined on the connection. Under load, batches grow and round-trips per
+    operation shrink; when idle, a lone call is sent immediately.
+    PIN checks go through the bank's shared PinAuthenticator (lockout included) on authExecutor,
+    never on the caller's thread.
+*/
+class PipelinedBankingClient implements AsyncBankingService, AutoCloseable {
+    private final BankingBackend backend;
+    private final PinAuthenticator authenticator;
+    private final Executor authExecutor;
+    private final int maxBatch;
+    private final Semaphore inFlight;
+    private final BlockingQueue<BankingRequest> queue;
+    private final Thread sender;
+    private volatile boolean closed;
+
+    public PipelinedBankingClient(BankingBackend backend, PinAuthenticator authenticator, int maxBatch, int maxInFlight) {
+        this(backend, authenticator, ForkJoinPool.commonPool(), maxBatch, maxInFlight);
+    }
+
+    public PipelinedBankingClient(BankingBackend backend, PinAuthenticator authenticator, Executor authExecutor, int maxBatch, int maxInFlight) {
+        this.backend = backend;
+        this.authenticator = authenticator;
+        this.authExecutor = authExecutor;
+        this.maxBatch = maxBatch;
+        this.inFlight = new Semaphore(maxInFlight);
+        // unbounded: completions run on the backend's thread and may submit follow-up calls, which must never block it
+        this.queue = new LinkedBlockingQueue<>();
+        this.sender = new Thread(this::sendLoop, "banking-pipeline");
+        sender.setDaemon(true);
+        sender.start();
+    }
+
+    public CompletableFuture<Boolean> authenticate(Card card, String pin) {
+        return CompletableFuture.supplyAsync(() -> authenticator.authenticate(card, pin), authExecutor);
+    }
+
+    public CompletableFuture<Void> deposit(UUID userId, double amount) {
+        return submit(BankingRequest.Op.DEPOSIT, userId, Money.toMinor(amount)).thenApply(balance -> null);
+    }
+
+    public CompletableFuture<Void> debit(UUID userId, double amount) {
+        return submit(BankingRequest.Op.DEBIT, userId, Money.toMinor(amount)).thenApply(balance -> null);
+    }
+
+    public CompletableFuture<Double> getBalance(UUID userId) {
+        return submit(BankingRequest.Op.BALANCE, userId, 0).thenApply(Money::toMajor);
+    }
+
+    private CompletableFuture<Long> submit(BankingRequest.Op op, UUID userId, long amount) {
+        BankingRequest request = new BankingRequest(op, userId, amount);
+        if (closed) {
+            request.result.completeExceptionally(new IllegalStateException("Client closed"));
+            return request.result;
+        }
+        queue.add(request);
+        // close() may have drained the queue between our check and the add
+        if (closed && queue.remove(request)) {
+            request.result.completeExceptionally(new IllegalStateException("Client closed"));
+        }
+        return request.result;
+    }
+
+    private void sendLoop() {
+        while (!closed) {
+            List<BankingRequest> batch = null;
+            try {
+                BankingRequest first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) continue;
+                batch = new ArrayList<>(Math.min(maxBatch, queue.size() + 1));
+                batch.add(first);
+                queue.drainTo(batch, maxBatch - 1);
+                inFlight.acquire();
+                List<BankingRequest> sent = batch;
+                backend.send(sent).whenComplete((v, e) -> {
+                    inFlight.release();
+                    if (e != null) {
+                        sent.forEach(r -> r.result.completeExceptionally(e));
+                    }
+                });
+            } catch (InterruptedException e) {
+                if (batch != null) {
+                    failAll(batch);
+                }
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    private static void failAll(Iterable<BankingRequest> requests) {
+        IllegalStateException closedError = new IllegalStateException("Client closed");
+        requests.forEach(r -> r.result.completeExceptionally(closedError));
+    }
+
+    public void close() {
+        closed = true;
+        sender.interrupt();
+        try {
+            sender.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        // whatever the sender left behind, or was enqueued while it shut down
+        List<BankingRequest> pending = new ArrayList<>();
+        queue.drainTo(pending);
+        failAll(pending);
+    }
+}
+
+// Blocking BankingService over the async client, for session code written in the blocking style
+class BlockingBankingService implements BankingService {
+    private final AsyncBankingService async;
+
+    public BlockingBankingService(AsyncBankingService async) {
+        this.async = async;
+    }
+
+    public boolean authenticate(Card card, String pin) {
+        return async.authenticate(card, pin).join();
+    }
+
+    public void deposit(UUID userId, double amount) {
+        async.deposit(userId, amount).join();
+    }
+
+    public void debit(UUID userId, double amount) throws InsufficientFundsException {
+        try {
+            async.debit(userId, amount).join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof InsufficientFundsException) {
+                throw (InsufficientFundsException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    public double getBalance(UUID userId) {
+        return async.getBalance(userId).join();
     }
 }
 
 // ATM class
 class ATM {
+    private static final int MINI_STATEMENT_SIZE = 10;
+    static final double DAILY_WITHDRAWAL_LIMIT = 2000;
+
+    enum Withdrawal { DISPENSED, NOT_DISPENSABLE, OVER_DAILY_LIMIT, INSUFFICIENT_FUNDS }
+
     private final BankingService bankingService;
     private final CashInventory cashInventory;
     private final Map<UUID, Card> cards = new HashMap<>();
@@ -211,19 +1231,24 @@ class ATM {
                 case 3:
                     System.out.print("Enter withdraw amount: ");
                     double withAmt = sc.nextDouble();
-                    try {
-                        if (cashInventory.dispenseCash(withAmt)) {
-                            bankingService.debit(userId, withAmt);
+                    switch (withdraw((InMemoryBankingService) bankingService, cashInventory, userId, withAmt)) {
+                        case DISPENSED:
                             System.out.println("Withdraw successful.");
-                        } else {
-                            System.out.println("ATM has insufficient cash.");
-                        }
-                    } catch (InsufficientFundsException e) {
-                        System.out.println(e.getMessage());
+                            break;
+                        case NOT_DISPENSABLE:
+                            System.out.println("Amount cannot be dispensed. Available amounts include: "
+                                    + Arrays.toString(cashInventory.dispensableAmounts(200)));
+                            break;
+                        case OVER_DAILY_LIMIT:
+                            System.out.println("Daily withdrawal limit of $" + DAILY_WITHDRAWAL_LIMIT + " exceeded.");
+                            break;
+                        case INSUFFICIENT_FUNDS:
+                            System.out.println("Insufficient balance");
+                            break;
                     }
                     break;
                 case 4:
-                    List<Transaction> txns = ((InMemoryBankingService) bankingService).getTransactions(userId);
+                    List<Transaction> txns = ((InMemoryBankingService) bankingService).lastTransactions(userId, MINI_STATEMENT_SIZE);
                     txns.forEach(System.out::println);
                     break;
                 case 5:
@@ -234,6 +1259,429 @@ class ATM {
             }
         }
     }
+
+    /*
+        The one check-and-debit path for cash withdrawals, used by this console and by fleet sessions.
+        The ATM's notes are held (cash monitor) before the account is touched, so a withdrawal that
+        cannot be paid out is never debited and never counts against the daily limit; the account's
+        monitor makes limit check and debit one step for every terminal the account is used from.
+    */
+    static Withdrawal withdraw(InMemoryBankingService bank, CashInventory cash, UUID userId, double amount) {
+        synchronized (cash) {
+            if (!cash.isDispensable(amount)) {
+                return Withdrawal.NOT_DISPENSABLE;
+            }
+            synchronized (bank.ledger.account(userId)) {
+                if (bank.debitedOn(userId, Instant.now()) + amount > DAILY_WITHDRAWAL_LIMIT) {
+                    return Withdrawal.OVER_DAILY_LIMIT;
+                }
+                try {
+                    bank.debit(userId, amount);
+                } catch (InsufficientFundsException e) {
+                    return Withdrawal.INSUFFICIENT_FUNDS;
+                }
+            }
+            cash.dispenseCash(amount); // cannot fail: dispensable was checked under the same monitor
+            return Withdrawal.DISPENSED;
+        }
+    }
+}
+
+/*
+    ATM session over the fleet protocol, one request line in, one reply line out:
+        HELLO <atmId> <cardNumber> <pin>   -> OK | ERR <reason>
+        BALANCE                             -> OK <balance>
+        DEPOSIT <amount>                    -> OK <balance>
+        WITHDRAW <amount>                   -> OK <balance> | ERR <reason>
+        BYE                                 -> BYE (connection closed)
+    The session is a small state machine driven by those messages. Commands of one session are
+    handled one at a time on the server's worker pool; IO stays on the selector thread.
+*/
+class AtmSession {
+    enum State { AWAITING_CARD, AUTHENTICATED, CLOSING }
+
+    private final AtmSessionServer server;
+    final SocketChannel channel;
+    SelectionKey key;
+    State state = State.AWAITING_CARD;
+    private String token;
+    private CashInventory cash;
+
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(512);
+    private final StringBuilder partial = new StringBuilder();
+    private final Deque<String> inbox = new ArrayDeque<>();
+    private boolean busy;
+    final Queue<ByteBuffer> outbox = new ConcurrentLinkedQueue<>();
+
+    AtmSession(AtmSessionServer server, SocketChannel channel) {
+        this.server = server;
+        this.channel = channel;
+    }
+
+    // selector thread: returns false when the peer closed the connection
+    boolean onReadable() throws IOException {
+        readBuffer.clear();
+        int n = channel.read(readBuffer);
+        if (n < 0) return false;
+        readBuffer.flip();
+        while (readBuffer.hasRemaining()) {
+            char c = (char) readBuffer.get();
+            if (c == '\n') {
+                enqueue(partial.toString().trim());
+                partial.setLength(0);
+            } else if (partial.length() < 256) {
+                partial.append(c);
+            }
+        }
+        return true;
+    }
+
+    private void enqueue(String line) {
+        synchronized (this) {
+            inbox.add(line);
+            if (busy) return;
+            busy = true;
+        }
+        server.workers.execute(this::drainInbox);
+    }
+
+    private void drainInbox() {
+        while (true) {
+            String line;
+            synchronized (this) {
+                line = inbox.poll();
+                if (line == null) {
+                    busy = false;
+                    return;
+                }
+            }
+            String reply;
+            try {
+                reply = handle(line);
+            } catch (RuntimeException e) {
+                reply = "ERR " + e.getMessage();
+            }
+            server.send(this, reply);
+        }
+    }
+
+    String handle(String line) {
+        String[] parts = line.split(" ");
+        String command = parts[0].toUpperCase();
+        if (state == State.CLOSING) {
+            return "ERR session closed";
+        }
+        if (command.equals("BYE")) {
+            if (token != null) server.authenticator.logout(token);
+            state = State.CLOSING;
+            return "BYE";
+        }
+
+        switch (state) {
+            case AWAITING_CARD:
+                if (!command.equals("HELLO") || parts.length != 4) return "ERR insert card first";
+                Card presented = server.cards.get(Integer.parseInt(parts[2]));
+                token = presented == null ? null : server.authenticator.login(presented, parts[3]);
+                if (token == null) {
+                    return "ERR authentication failed";
+                }
+                cash = server.inventory(Integer.parseInt(parts[1]));
+                state = State.AUTHENTICATED;
+                return "OK";
+            case AUTHENTICATED:
+                Card card = server.authenticator.session(token);
+                if (card == null) {
+                    state = State.CLOSING;
+                    return "ERR session expired";
+                }
+                UUID userId = card.getUserId();
+                switch (command) {
+                    case "BALANCE":
+                        return "OK " + server.banking.getBalance(userId);
+                    case "DEPOSIT": {
+                        double amount = Double.parseDouble(parts[1]);
+                        server.banking.deposit(userId, amount);
+                        cash.addCash(amount);
+                        return "OK " + server.banking.getBalance(userId);
+                    }
+                    case "WITHDRAW": {
+                        double amount = Double.parseDouble(parts[1]);
+                        switch (ATM.withdraw(server.banking, cash, userId, amount)) {
+                            case NOT_DISPENSABLE:
+                                return "ERR amount cannot be dispensed";
+                            case OVER_DAILY_LIMIT:
+                                return "ERR daily withdrawal limit of $" + ATM.DAILY_WITHDRAWAL_LIMIT + " exceeded";
+                            case INSUFFICIENT_FUNDS:
+                                return "ERR Insufficient balance";
+                            default:
+                                return "OK " + server.banking.getBalance(userId);
+                        }
+                    }
+                    default:
+                        return "ERR unknown command";
+                }
+            default:
+                return "ERR session closed";
+        }
+    }
+}
+
+/*
+    Fleet session server: one selector thread multiplexes every terminal connection, commands are
+    executed on a small worker pool. One CashInventory is kept per physical ATM id and shared by all
+    of its sessions; the BankingService is shared by everything, and logins go through the bank's
+    PinAuthenticator so lockouts count every failed PIN whichever front end it came from.
+*/
+class AtmSessionServer implements Closeable {
+    final InMemoryBankingService banking;
+    final Map<Integer, Card> cards;
+    final PinAuthenticator authenticator;
+    final ExecutorService workers;
+    private final Map<Integer, CashInventory> inventories = new ConcurrentHashMap<>();
+    private final Queue<AtmSession> pendingWrites = new ConcurrentLinkedQueue<>();
+    private Selector selector;
+    private ServerSocketChannel serverChannel;
+    private Thread ioThread;
+    private volatile boolean running;
+
+    public AtmSessionServer(InMemoryBankingService banking, Map<Integer, Card> cards, int workerThreads) {
+        this(banking, banking.authenticator, cards, workerThreads);
+    }
+
+    // authenticator must be the one the bank's other entry points use
+    public AtmSessionServer(InMemoryBankingService banking, PinAuthenticator authenticator, Map<Integer, Card> cards, int workerThreads) {
+        this.banking = banking;
+        this.authenticator = authenticator;
+        this.cards = cards;
+        this.workers = Executors.newFixedThreadPool(workerThreads);
+    }
+
+    CashInventory inventory(int atmId) {
+        return inventories.computeIfAbsent(atmId, id -> new CashInventory());
+    }
+
+    // Binds to localhost and returns the actual port (pass 0 for an ephemeral port)
+    public int start(int port) throws IOException {
+        selector = Selector.open();
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress("127.0.0.1", port), 4096);
+        serverChannel.configureBlocking(false);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        running = true;
+        ioThread = new Thread(this::ioLoop, "atm-session-io");
+        ioThread.start();
+        return ((InetSocketAddress) serverChannel.getLocalAddress()).getPort();
+    }
+
+    void send(AtmSession session, String reply) {
+        session.outbox.add(ByteBuffer.wrap((reply + "\n").getBytes(StandardCharsets.US_ASCII)));
+        pendingWrites.add(session);
+        selector.wakeup();
+    }
+
+    private void ioLoop() {
+        while (running) {
+            try {
+                selector.select();
+                AtmSession ready;
+                while ((ready = pendingWrites.poll()) != null) {
+                    if (ready.key.isValid()) {
+                        ready.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                    }
+                }
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) continue;
+                    if (key.isAcceptable()) {
+                        accept();
+                        continue;
+                    }
+                    AtmSession session = (AtmSession) key.attachment();
+                    try {
+                        if (key.isReadable() && !session.onReadable()) {
+                            close(session);
+                            continue;
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            flush(session);
+                        }
+                    } catch (IOException e) {
+                        close(session);
+                    }
+                }
+            } catch (IOException e) {
+                if (running) System.out.println("Session server IO error: " + e.getMessage());
+            }
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel;
+        while ((channel = serverChannel.accept()) != null) {
+            try {
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+                AtmSession session = new AtmSession(this, channel);
+                session.key = channel.register(selector, SelectionKey.OP_READ, session);
+            } catch (IOException e) {
+                // drop just this terminal; the listener keeps accepting
+                System.out.println("Rejected terminal connection: " + e.getMessage());
+                channel.close();
+            }
+        }
+    }
+
+    private void flush(AtmSession session) throws IOException {
+        ByteBuffer buf;
+        while ((buf = session.outbox.peek()) != null) {
+            session.channel.write(buf);
+            if (buf.hasRemaining()) return;
+            session.outbox.poll();
+        }
+        if (session.state == AtmSession.State.CLOSING) {
+            close(session);
+        } else {
+            session.key.interestOps(SelectionKey.OP_READ);
+        }
+    }
+
+    private void close(AtmSession session) {
+        session.key.cancel();
+        try {
+            session.channel.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    public void close() throws IOException {
+        running = false;
+        selector.wakeup();
+        try {
+            ioThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (SelectionKey key : selector.keys()) {
+            key.channel().close();
+        }
+        selector.close();
+        workers.shutdown();
+    }
+}
+
+/*
+    Load generator for AtmSessionServer. Each client thread owns many terminal connections and
+    advances them in lock-step: send the next command on every connection, then collect every reply,
+    so connections * threads sessions are live at once. Reports session throughput and per-command
+    latency percentiles.
+*/
+class AtmLoadGenerator {
+    private static final String[] SCRIPT = {"HELLO %d %d 1234", "BALANCE", "WITHDRAW 60", "DEPOSIT 60", "BYE"};
+
+    public static void main(String[] args) throws Exception {
+        int threads = 8, connectionsPerThread = 250, rounds = 20, atms = 50;
+        InMemoryBankingService banking = new InMemoryBankingService();
+        Map<Integer, Card> cards = new ConcurrentHashMap<>();
+        int users = threads * connectionsPerThread;
+        for (int i = 0; i < users; i++) {
+            // cheap PIN hashing so the run measures the server rather than PBKDF2
+            Card card = new Card(100_000 + i, "user" + i, UUID.randomUUID(), "1234", 16);
+            cards.put(card.cardNumber, card);
+            banking.register(card.getUserId(), new Account(UUID.randomUUID(), 1_000_000));
+        }
+
+        try (AtmSessionServer server = new AtmSessionServer(banking, cards, 4)) {
+            int port = server.start(0);
+            long[][] latencies = new long[threads][];
+            Thread[] clients = new Thread[threads];
+            long start = System.nanoTime();
+            for (int t = 0; t < threads; t++) {
+                int thread = t;
+                clients[t] = new Thread(() -> latencies[thread] = drive(port, thread, connectionsPerThread, rounds, atms));
+                clients[t].start();
+            }
+            for (Thread client : clients) client.join();
+            double seconds = (System.nanoTime() - start) / 1e9;
+
+            long[] all = Arrays.stream(latencies).flatMapToLong(Arrays::stream).sorted().toArray();
+            long sessions = (long) users * rounds;
+            System.out.printf("%d sessions (%d concurrent) in %.2fs: %.0f sessions/s, %.0f commands/s%n",
+                    sessions, users, seconds, sessions / seconds, all.length / seconds);
+            System.out.printf("command latency p50=%dus p99=%dus p99.9=%dus max=%dus%n",
+                    all[all.length / 2] / 1000, all[all.length * 99 / 100] / 1000,
+                    all[all.length * 999 / 1000] / 1000, all[all.length - 1] / 1000);
+        }
+    }
+
+    private static long[] drive(int port, int thread, int connections, int rounds, int atms) {
+        long[] latencies = new long[connections * rounds * SCRIPT.length];
+        int recorded = 0;
+        try {
+            for (int round = 0; round < rounds; round++) {
+                Socket[] sockets = new Socket[connections];
+                BufferedReader[] readers = new BufferedReader[connections];
+                OutputStream[] writers = new OutputStream[connections];
+                for (int c = 0; c < connections; c++) {
+                    sockets[c] = new Socket("127.0.0.1", port);
+                    sockets[c].setTcpNoDelay(true);
+                    readers[c] = new BufferedReader(new InputStreamReader(sockets[c].getInputStream(), StandardCharsets.US_ASCII));
+                    writers[c] = sockets[c].getOutputStream();
+                }
+                long[] sentAt = new long[connections];
+                for (String step : SCRIPT) {
+                    for (int c = 0; c < connections; c++) {
+                        int user = thread * connections + c;
+                        String line = String.format(step, user % atms, 100_000 + user) + "\n";
+                        sentAt[c] = System.nanoTime();
+                        writers[c].write(line.getBytes(StandardCharsets.US_ASCII));
+                    }
+                    for (int c = 0; c < connections; c++) {
+                        String reply = readers[c].readLine();
+                        latencies[recorded++] = System.nanoTime() - sentAt[c];
+                        if (reply == null || reply.startsWith("ERR authentication")) {
+                            throw new IllegalStateException("Unexpected reply " + reply);
+                        }
+                    }
+                }
+                for (Socket socket : sockets) socket.close();
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return Arrays.copyOf(latencies, recorded);
+    }
+}
+
+// Drives many concurrent sessions (balance, withdraw, deposit) through one pipelined client
+class AsyncBankingDemo {
+    public static void main(String[] args) {
+        int sessions = 10_000;
+        Ledger ledger = new Ledger();
+        UUID[] users = new UUID[sessions];
+        for (int i = 0; i < sessions; i++) {
+            users[i] = UUID.randomUUID();
+            ledger.register(users[i], new Account(UUID.randomUUID(), 500));
+        }
+        SimulatedBankingBackend backend = new SimulatedBankingBackend(ledger, 2_000);
+
+        try (PipelinedBankingClient client = new PipelinedBankingClient(backend, backend.authenticator, 256, 32)) {
+            long start = System.nanoTime();
+            CompletableFuture<?>[] all = new CompletableFuture<?>[sessions];
+            for (int i = 0; i < sessions; i++) {
+                UUID user = users[i];
+                all[i] = client.getBalance(user)
+                        .thenCompose(balance -> client.debit(user, 100))
+                        .thenCompose(v -> client.deposit(user, 40))
+                        .thenCompose(v -> client.getBalance(user));
+            }
+            CompletableFuture.allOf(all).join();
+            long millis = (System.nanoTime() - start) / 1_000_000;
+            System.out.println(sessions + " sessions, " + sessions * 4 + " calls in " + millis + " ms over "
+                    + backend.batches.get() + " round-trips");
+        }
+    }
 }
 
 // MAIN method to test
@@ -1,4 +1,21 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.IntPredicate;
 
 enum Color {
     WHITE, BLACK
@@ -120,6 +137,1378 @@ class ChessGame {
             return false;
         }
     }
+
+    /*
+        Engine move for the side to move within timeBudget, or null when it has no legal move.
+        The search plays this game's rules at every ply, not just the root: see isLegacyMove. One
+        difference remains: a pawn reaching the last rank is searched as a queen that never moves and
+        cannot be captured (as the legacy pawn there), so such lines score higher than a pawn would.
+    */
+    public Search.Result bestMove(Duration timeBudget) {
+        Search.Result result = Search.shared().search(BitBoard.fromBoard(board, currentTurn), timeBudget, Search.MAX_PLY - 1,
+                ChessGame::isLegacyMove, null);
+        return result.move == 0 ? null : result;
+    }
+
+    /*
+        Whether Board.movePiece would accept the bitboard move, in any position reached from a legacy
+        board: single pushes and diagonal captures are exactly the bitboard's plain pawn moves; double
+        pushes, en passant and under-promotions are not legacy moves, and a legacy board has no other
+        pieces. Moves to the last rank only exist as promotions, the queen one stands in for them.
+    */
+    static boolean isLegacyMove(int move) {
+        return BitBoard.piece(move) == BitBoard.PAWN && BitBoard.flag(move) == BitBoard.FLAG_NONE
+                && (BitBoard.promotion(move) == 0 || BitBoard.promotion(move) == BitBoard.QUEEN);
+    }
+}
+
+/*
+    Bitboard position: one 64-bit mask per piece type and color, square = row * 8 + col with row 0
+    being black's back rank, the same layout as Board.grid. Full standard rules (double pushes,
+    promotion, en passant, castling, legality). Moves are ints written into caller-provided buffers,
+    so generation does not allocate:
+        from (6 bits) | to << 6 | piece << 12 | promotion piece << 15 | flag << 18
+    make/unmake update the position in place and keep a Zobrist hash current; what cannot be
+    recomputed on unmake (captured piece, castling rights, en passant square, hash) goes on an
+    internal undo stack.
+*/
+class BitBoard {
+    static final int WHITE = 0, BLACK = 1;
+    static final int PAWN = 0, KNIGHT = 1, BISHOP = 2, ROOK = 3, QUEEN = 4, KING = 5;
+    static final int FLAG_NONE = 0, FLAG_DOUBLE_PUSH = 1, FLAG_EN_PASSANT = 2, FLAG_CASTLE = 3;
+    static final int MAX_MOVES = 256;
+    static final String START_FEN = "rnbqkbnr/pppppppp/8/8/8/8/PPPPPPPP/RNBQKBNR w KQkq - 0 1";
+
+    private static final int[] DELTA = {-8, 8, -1, 1, -9, -7, 7, 9}; // N S W E NW NE SW SE
+    private static final long[][] RAYS = new long[8][64];
+    private static final long[] KNIGHT_ATTACKS = new long[64];
+    private static final long[] KING_ATTACKS = new long[64];
+    private static final long[][] PAWN_ATTACKS = new long[2][64];
+    private static final int[] CASTLE_MASK = new int[64];
+    private static final long ROW_2 = 0xFFL << 16, ROW_5 = 0xFFL << 40;
+    private static final long ROW_0 = 0xFFL, ROW_7 = 0xFFL << 56;
+
+    private static final long[][] PIECE_KEYS = new long[12][64];
+    private static final long[] CASTLE_KEYS = new long[16];
+    private static final long[] EP_KEYS = new long[8];
+    private static final long SIDE_KEY;
+
+    static {
+        int[][] dirs = {{-1, 0}, {1, 0}, {0, -1}, {0, 1}, {-1, -1}, {-1, 1}, {1, -1}, {1, 1}};
+        int[][] knight = {{-2, -1}, {-2, 1}, {-1, -2}, {-1, 2}, {1, -2}, {1, 2}, {2, -1}, {2, 1}};
+        for (int sq = 0; sq < 64; sq++) {
+            int r = sq >> 3, c = sq & 7;
+            for (int d = 0; d < 8; d++) {
+                for (int rr = r + dirs[d][0], cc = c + dirs[d][1]; inBounds(rr, cc); rr += dirs[d][0], cc += dirs[d][1]) {
+                    RAYS[d][sq] |= 1L << (rr * 8 + cc);
+                }
+                if (inBounds(r + dirs[d][0], c + dirs[d][1])) {
+                    KING_ATTACKS[sq] |= 1L << ((r + dirs[d][0]) * 8 + c + dirs[d][1]);
+                }
+                if (inBounds(r + knight[d][0], c + knight[d][1])) {
+                    KNIGHT_ATTACKS[sq] |= 1L << ((r + knight[d][0]) * 8 + c + knight[d][1]);
+                }
+            }
+            for (int dc = -1; dc <= 1; dc += 2) {
+                if (inBounds(r - 1, c + dc)) PAWN_ATTACKS[WHITE][sq] |= 1L << ((r - 1) * 8 + c + dc);
+                if (inBounds(r + 1, c + dc)) PAWN_ATTACKS[BLACK][sq] |= 1L << ((r + 1) * 8 + c + dc);
+            }
+            CASTLE_MASK[sq] = 15;
+        }
+        CASTLE_MASK[60] = ~3 & 15;
+        CASTLE_MASK[63] = ~1 & 15;
+        CASTLE_MASK[56] = ~2 & 15;
+        CASTLE_MASK[4] = ~12 & 15;
+        CASTLE_MASK[7] = ~4 & 15;
+        CASTLE_MASK[0] = ~8 & 15;
+
+        SplittableRandom random = new SplittableRandom(0x5EED_C4E55L); // fixed so hashes are stable across runs
+        for (long[] keys : PIECE_KEYS) {
+            for (int sq = 0; sq < 64; sq++) keys[sq] = random.nextLong();
+        }
+        for (int i = 0; i < 16; i++) CASTLE_KEYS[i] = random.nextLong();
+        for (int i = 0; i < 8; i++) EP_KEYS[i] = random.nextLong();
+        SIDE_KEY = random.nextLong();
+    }
+
+    final long[] pieces = new long[12]; // color * 6 + piece
+    final long[] occupancy = new long[2];
+    int sideToMove;
+    int castling; // 1 = white king side, 2 = white queen side, 4 = black king side, 8 = black queen side
+    int enPassant = -1;
+    long hash;
+
+    // Undo stack, grown on first use so idle positions stay small
+    private int ply;
+    private int[] undoCaptured = new int[0];
+    private int[] undoCastling = new int[0];
+    private int[] undoEnPassant = new int[0];
+    private long[] undoHash = new long[0];
+
+    private static boolean inBounds(int r, int c) {
+        return r >= 0 && r < 8 && c >= 0 && c < 8;
+    }
+
+    static int from(int move) { return move & 63; }
+    static int to(int move) { return (move >>> 6) & 63; }
+    static int piece(int move) { return (move >>> 12) & 7; }
+    static int promotion(int move) { return (move >>> 15) & 7; }
+    static int flag(int move) { return (move >>> 18) & 3; }
+
+    static int encode(int from, int to, int piece, int promotion, int flag) {
+        return from | to << 6 | piece << 12 | promotion << 15 | flag << 18;
+    }
+
+    public static BitBoard fromFen(String fen) {
+        BitBoard b = new BitBoard();
+        String[] parts = fen.trim().split("\\s+");
+        int sq = 0;
+        for (char ch : parts[0].toCharArray()) {
+            if (ch == '/') continue;
+            if (Character.isDigit(ch)) {
+                sq += ch - '0';
+                continue;
+            }
+            int color = Character.isUpperCase(ch) ? WHITE : BLACK;
+            int type = "pnbrqk".indexOf(Character.toLowerCase(ch));
+            b.pieces[color * 6 + type] |= 1L << sq;
+            b.occupancy[color] |= 1L << sq;
+            sq++;
+        }
+        b.sideToMove = parts.length > 1 && parts[1].equals("b") ? BLACK : WHITE;
+        if (parts.length > 2) {
+            for (char ch : parts[2].toCharArray()) {
+                b.castling |= ch == 'K' ? 1 : ch == 'Q' ? 2 : ch == 'k' ? 4 : ch == 'q' ? 8 : 0;
+            }
+        }
+        if (parts.length > 3 && !parts[3].equals("-")) {
+            b.enPassant = (8 - (parts[3].charAt(1) - '0')) * 8 + (parts[3].charAt(0) - 'a');
+        }
+        b.hash = b.computeHash();
+        return b;
+    }
+
+    public String toFen() {
+        StringBuilder sb = new StringBuilder();
+        for (int row = 0; row < 8; row++) {
+            int empty = 0;
+            for (int col = 0; col < 8; col++) {
+                int p = pieceAt(row * 8 + col);
+                if (p < 0) {
+                    empty++;
+                    continue;
+                }
+                if (empty > 0) sb.append(empty);
+                empty = 0;
+                char ch = "pnbrqk".charAt(p % 6);
+                sb.append(p < 6 ? Character.toUpperCase(ch) : ch);
+            }
+            if (empty > 0) sb.append(empty);
+            if (row < 7) sb.append('/');
+        }
+        sb.append(sideToMove == WHITE ? " w " : " b ");
+        if (castling == 0) sb.append('-');
+        if ((castling & 1) != 0) sb.append('K');
+        if ((castling & 2) != 0) sb.append('Q');
+        if ((castling & 4) != 0) sb.append('k');
+        if ((castling & 8) != 0) sb.append('q');
+        sb.append(' ').append(enPassant < 0 ? "-" : squareName(enPassant));
+        return sb.append(" 0 1").toString();
+    }
+
+    // Position of a legacy Board (pawns only), no castling rights
+    public static BitBoard fromBoard(Board board, Color toMove) {
+        BitBoard b = new BitBoard();
+        for (int row = 0; row < 8; row++) {
+            for (int col = 0; col < 8; col++) {
+                Piece p = board.getPieceAt(row, col);
+                if (p instanceof Pawn) {
+                    int color = p.color == Color.WHITE ? WHITE : BLACK;
+                    b.pieces[color * 6 + PAWN] |= 1L << (row * 8 + col);
+                    b.occupancy[color] |= 1L << (row * 8 + col);
+                }
+            }
+        }
+        b.sideToMove = toMove == Color.WHITE ? WHITE : BLACK;
+        b.hash = b.computeHash();
+        return b;
+    }
+
+    static String squareName(int sq) {
+        return "" + (char) ('a' + (sq & 7)) + (8 - (sq >> 3));
+    }
+
+    // color * 6 + piece, or -1 when empty
+    int pieceAt(int sq) {
+        long bit = 1L << sq;
+        for (int p = 0; p < 12; p++) {
+            if ((pieces[p] & bit) != 0) return p;
+        }
+        return -1;
+    }
+
+    void copyFrom(BitBoard other) {
+        System.arraycopy(other.pieces, 0, pieces, 0, 12);
+        occupancy[0] = other.occupancy[0];
+        occupancy[1] = other.occupancy[1];
+        sideToMove = other.sideToMove;
+        castling = other.castling;
+        enPassant = other.enPassant;
+        hash = other.hash;
+        ply = 0;
+    }
+
+    // Makes the moves played so far permanent, for positions that are only played forward
+    void forgetHistory() {
+        ply = 0;
+    }
+
+    // Full recomputation; make/unmake keep `hash` equal to this incrementally
+    long computeHash() {
+        long h = 0;
+        for (int p = 0; p < 12; p++) {
+            for (long bits = pieces[p]; bits != 0; bits &= bits - 1) {
+                h ^= PIECE_KEYS[p][Long.numberOfTrailingZeros(bits)];
+            }
+        }
+        h ^= CASTLE_KEYS[castling];
+        if (enPassant >= 0) h ^= EP_KEYS[enPassant & 7];
+        if (sideToMove == BLACK) h ^= SIDE_KEY;
+        return h;
+    }
+
+    private static long slide(int d, int sq, long occ) {
+        long ray = RAYS[d][sq];
+        long blockers = ray & occ;
+        if (blockers != 0) {
+            int first = DELTA[d] > 0 ? Long.numberOfTrailingZeros(blockers) : 63 - Long.numberOfLeadingZeros(blockers);
+            ray ^= RAYS[d][first];
+        }
+        return ray;
+    }
+
+    static long rookAttacks(int sq, long occ) {
+        return slide(0, sq, occ) | slide(1, sq, occ) | slide(2, sq, occ) | slide(3, sq, occ);
+    }
+
+    static long bishopAttacks(int sq, long occ) {
+        return slide(4, sq, occ) | slide(5, sq, occ) | slide(6, sq, occ) | slide(7, sq, occ);
+    }
+
+    // Is sq attacked by color `by`, given occupancy and a mask of by's pieces still on the board
+    boolean attacked(int sq, int by, long occ, long alive) {
+        int base = by * 6;
+        return (PAWN_ATTACKS[by ^ 1][sq] & pieces[base + PAWN] & alive) != 0
+                || (KNIGHT_ATTACKS[sq] & pieces[base + KNIGHT] & alive) != 0
+                || (KING_ATTACKS[sq] & pieces[base + KING]) != 0
+                || (bishopAttacks(sq, occ) & (pieces[base + BISHOP] | pieces[base + QUEEN]) & alive) != 0
+                || (rookAttacks(sq, occ) & (pieces[base + ROOK] | pieces[base + QUEEN]) & alive) != 0;
+    }
+
+    public boolean inCheck() {
+        long king = pieces[sideToMove * 6 + KING];
+        return king != 0 && attacked(Long.numberOfTrailingZeros(king), sideToMove ^ 1, occupancy[0] | occupancy[1], -1L);
+    }
+
+    // Writes the legal moves for the side to move into out[offset..] and returns how many
+    public int generate(int[] out, int offset) {
+        int us = sideToMove, them = us ^ 1;
+        long own = occupancy[us], enemy = occupancy[them], all = own | enemy;
+        int n = offset;
+
+        long pawns = pieces[us * 6 + PAWN];
+        long push1, push2, promoRow;
+        int back;
+        if (us == WHITE) {
+            push1 = (pawns >>> 8) & ~all;
+            push2 = ((push1 & ROW_5) >>> 8) & ~all;
+            promoRow = ROW_0;
+            back = 8;
+        } else {
+            push1 = (pawns << 8) & ~all;
+            push2 = ((push1 & ROW_2) << 8) & ~all;
+            promoRow = ROW_7;
+            back = -8;
+        }
+        for (long bits = push1; bits != 0; bits &= bits - 1) {
+            int to = Long.numberOfTrailingZeros(bits);
+            n = addPawnMove(out, n, to + back, to, FLAG_NONE, (promoRow & (1L << to)) != 0);
+        }
+        for (long bits = push2; bits != 0; bits &= bits - 1) {
+            int to = Long.numberOfTrailingZeros(bits);
+            out[n++] = encode(to + 2 * back, to, PAWN, 0, FLAG_DOUBLE_PUSH);
+        }
+        for (long bits = pawns; bits != 0; bits &= bits - 1) {
+            int from = Long.numberOfTrailingZeros(bits);
+            for (long t = PAWN_ATTACKS[us][from] & enemy; t != 0; t &= t - 1) {
+                int to = Long.numberOfTrailingZeros(t);
+                n = addPawnMove(out, n, from, to, FLAG_NONE, (promoRow & (1L << to)) != 0);
+            }
+            if (enPassant >= 0 && (PAWN_ATTACKS[us][from] & (1L << enPassant)) != 0) {
+                out[n++] = encode(from, enPassant, PAWN, 0, FLAG_EN_PASSANT);
+            }
+        }
+
+        for (int type = KNIGHT; type <= KING; type++) {
+            for (long bits = pieces[us * 6 + type]; bits != 0; bits &= bits - 1) {
+                int from = Long.numberOfTrailingZeros(bits);
+                long targets;
+                switch (type) {
+                    case KNIGHT: targets = KNIGHT_ATTACKS[from]; break;
+                    case BISHOP: targets = bishopAttacks(from, all); break;
+                    case ROOK: targets = rookAttacks(from, all); break;
+                    case QUEEN: targets = bishopAttacks(from, all) | rookAttacks(from, all); break;
+                    default: targets = KING_ATTACKS[from]; break;
+                }
+                for (long t = targets & ~own; t != 0; t &= t - 1) {
+                    out[n++] = encode(from, Long.numberOfTrailingZeros(t), type, 0, FLAG_NONE);
+                }
+            }
+        }
+        n = addCastles(out, n, us, all);
+
+        // keep only moves that do not leave our king attacked
+        int legal = offset;
+        for (int i = offset; i < n; i++) {
+            if (isLegal(out[i])) out[legal++] = out[i];
+        }
+        return legal - offset;
+    }
+
+    private int addPawnMove(int[] out, int n, int from, int to, int flag, boolean promotes) {
+        if (promotes) {
+            for (int p = QUEEN; p >= KNIGHT; p--) out[n++] = encode(from, to, PAWN, p, flag);
+        } else {
+            out[n++] = encode(from, to, PAWN, 0, flag);
+        }
+        return n;
+    }
+
+    private int addCastles(int[] out, int n, int us, long all) {
+        int them = us ^ 1;
+        if (us == WHITE) {
+            if ((castling & 1) != 0 && (all & 0x6000000000000000L) == 0
+                    && !attacked(60, them, all, -1L) && !attacked(61, them, all, -1L) && !attacked(62, them, all, -1L)) {
+                out[n++] = encode(60, 62, KING, 0, FLAG_CASTLE);
+            }
+            if ((castling & 2) != 0 && (all & 0x0E00000000000000L) == 0
+                    && !attacked(60, them, all, -1L) && !attacked(59, them, all, -1L) && !attacked(58, them, all, -1L)) {
+                out[n++] = encode(60, 58, KING, 0, FLAG_CASTLE);
+            }
+        } else {
+            if ((castling & 4) != 0 && (all & 0x60L) == 0
+                    && !attacked(4, them, all, -1L) && !attacked(5, them, all, -1L) && !attacked(6, them, all, -1L)) {
+                out[n++] = encode(4, 6, KING, 0, FLAG_CASTLE);
+            }
+            if ((castling & 8) != 0 && (all & 0x0EL) == 0
+                    && !attacked(4, them, all, -1L) && !attacked(3, them, all, -1L) && !attacked(2, them, all, -1L)) {
+                out[n++] = encode(4, 2, KING, 0, FLAG_CASTLE);
+            }
+        }
+        return n;
+    }
+
+    // Legality without mutating: recompute occupancy as if the move were made and test the king
+    private boolean isLegal(int move) {
+        int us = sideToMove;
+        long king = pieces[us * 6 + KING];
+        if (king == 0 || flag(move) == FLAG_CASTLE) {
+            return true; // king-less legacy positions; castles are fully checked when generated
+        }
+        long fromBit = 1L << from(move), toBit = 1L << to(move);
+        long occ = ((occupancy[0] | occupancy[1]) ^ fromBit) | toBit;
+        long alive = ~toBit;
+        if (flag(move) == FLAG_EN_PASSANT) {
+            long captured = 1L << (us == WHITE ? to(move) + 8 : to(move) - 8);
+            occ ^= captured;
+            alive &= ~captured;
+        }
+        int kingSq = piece(move) == KING ? to(move) : Long.numberOfTrailingZeros(king);
+        return !attacked(kingSq, us ^ 1, occ, alive);
+    }
+
+    // Plays a move generated for this position; undo with unmake(move)
+    void make(int move) {
+        if (ply == undoHash.length) {
+            int size = Math.max(16, ply * 2);
+            undoCaptured = Arrays.copyOf(undoCaptured, size);
+            undoCastling = Arrays.copyOf(undoCastling, size);
+            undoEnPassant = Arrays.copyOf(undoEnPassant, size);
+            undoHash = Arrays.copyOf(undoHash, size);
+        }
+        undoHash[ply] = hash;
+        undoCastling[ply] = castling;
+        undoEnPassant[ply] = enPassant;
+
+        int us = sideToMove, them = us ^ 1;
+        int from = from(move), to = to(move), piece = piece(move), promotion = promotion(move), flag = flag(move);
+        long fromBit = 1L << from, toBit = 1L << to;
+        long h = hash;
+        int captured = -1;
+
+        if ((occupancy[them] & toBit) != 0) {
+            for (int p = them * 6; p < them * 6 + 6; p++) {
+                if ((pieces[p] & toBit) != 0) {
+                    captured = p;
+                    break;
+                }
+            }
+            pieces[captured] ^= toBit;
+            occupancy[them] ^= toBit;
+            h ^= PIECE_KEYS[captured][to];
+        } else if (flag == FLAG_EN_PASSANT) {
+            int sq = us == WHITE ? to + 8 : to - 8;
+            pieces[them * 6 + PAWN] ^= 1L << sq;
+            occupancy[them] ^= 1L << sq;
+            h ^= PIECE_KEYS[them * 6 + PAWN][sq];
+        }
+
+        int moved = us * 6 + piece, placed = us * 6 + (promotion != 0 ? promotion : piece);
+        pieces[moved] ^= fromBit;
+        pieces[placed] |= toBit;
+        occupancy[us] ^= fromBit | toBit;
+        h ^= PIECE_KEYS[moved][from] ^ PIECE_KEYS[placed][to];
+
+        if (flag == FLAG_CASTLE) {
+            int rookFrom = rookFrom(to), rookTo = rookTo(to);
+            long rookBits = (1L << rookFrom) | (1L << rookTo);
+            pieces[us * 6 + ROOK] ^= rookBits;
+            occupancy[us] ^= rookBits;
+            h ^= PIECE_KEYS[us * 6 + ROOK][rookFrom] ^ PIECE_KEYS[us * 6 + ROOK][rookTo];
+        }
+
+        h ^= CASTLE_KEYS[castling];
+        castling &= CASTLE_MASK[from] & CASTLE_MASK[to];
+        h ^= CASTLE_KEYS[castling];
+        if (enPassant >= 0) h ^= EP_KEYS[enPassant & 7];
+        enPassant = flag == FLAG_DOUBLE_PUSH ? (from + to) >> 1 : -1;
+        if (enPassant >= 0) h ^= EP_KEYS[enPassant & 7];
+        sideToMove = them;
+        hash = h ^ SIDE_KEY;
+        undoCaptured[ply++] = captured;
+    }
+
+    void unmake(int move) {
+        int captured = undoCaptured[--ply];
+        int them = sideToMove, us = them ^ 1;
+        int from = from(move), to = to(move), piece = piece(move), promotion = promotion(move), flag = flag(move);
+        long fromBit = 1L << from, toBit = 1L << to;
+
+        pieces[us * 6 + (promotion != 0 ? promotion : piece)] ^= toBit;
+        pieces[us * 6 + piece] |= fromBit;
+        occupancy[us] ^= fromBit | toBit;
+
+        if (flag == FLAG_CASTLE) {
+            long rookBits = (1L << rookFrom(to)) | (1L << rookTo(to));
+            pieces[us * 6 + ROOK] ^= rookBits;
+            occupancy[us] ^= rookBits;
+        } else if (flag == FLAG_EN_PASSANT) {
+            long sq = 1L << (us == WHITE ? to + 8 : to - 8);
+            pieces[them * 6 + PAWN] |= sq;
+            occupancy[them] |= sq;
+        }
+        if (captured >= 0) {
+            pieces[captured] |= toBit;
+            occupancy[them] |= toBit;
+        }
+
+        sideToMove = us;
+        castling = undoCastling[ply];
+        enPassant = undoEnPassant[ply];
+        hash = undoHash[ply];
+    }
+
+    private static int rookFrom(int kingTo) {
+        return kingTo == 62 ? 63 : kingTo == 58 ? 56 : kingTo == 6 ? 7 : 0;
+    }
+
+    private static int rookTo(int kingTo) {
+        return kingTo == 62 ? 61 : kingTo == 58 ? 59 : kingTo == 6 ? 5 : 3;
+    }
+
+    static String moveName(int move) {
+        String s = squareName(from(move)) + squareName(to(move));
+        return promotion(move) != 0 ? s + "nbrq".charAt(promotion(move) - 1) : s;
+    }
+}
+
+/*
+    Fixed-size transposition table shared by all search threads without locks.
+    Each bucket has two entries of two longs, (key ^ data, data): a reader recomputes key ^ data and
+    rejects the entry if it does not match, so an entry torn by a concurrent write is just a miss.
+    Replacement: the first slot keeps the deepest result (replaced by equal or deeper searches, or
+    when left over from an older search), the second slot always takes the newest.
+    data: move (21 bits) | score (16) << 21 | depth (8) << 37 | bound (2) << 45 | age (8) << 47 | valid << 55
+*/
+class TranspositionTable {
+    static final int EXACT = 0, LOWER = 1, UPPER = 2;
+    static final long MISS = 0;
+    private static final long VALID = 1L << 55;
+
+    private final long[] table;
+    private final int bucketMask;
+    private volatile int age;
+
+    TranspositionTable(int megabytes) {
+        int buckets = Integer.highestOneBit(Math.max(1, (int) ((long) megabytes * (1 << 20) / 32)));
+        table = new long[buckets * 4];
+        bucketMask = buckets - 1;
+    }
+
+    static int move(long data) { return (int) (data & 0x1FFFFF); }
+    static int score(long data) { return (short) (data >>> 21); }
+    static int depth(long data) { return (int) ((data >>> 37) & 0xFF); }
+    static int bound(long data) { return (int) ((data >>> 45) & 3); }
+    private static int age(long data) { return (int) ((data >>> 47) & 0xFF); }
+
+    // Call at the start of each search so stale entries lose their protection
+    void newSearch() {
+        age = (age + 1) & 0xFF;
+    }
+
+    long probe(long key) {
+        int base = ((int) key & bucketMask) << 2;
+        for (int slot = base; slot < base + 4; slot += 2) {
+            long data = table[slot + 1];
+            if ((table[slot] ^ data) == key && data != MISS) {
+                return data;
+            }
+        }
+        return MISS;
+    }
+
+    void store(long key, int move, int score, int depth, int bound) {
+        int currentAge = age;
+        long data = (move & 0x1FFFFFL) | ((score & 0xFFFFL) << 21) | ((long) Math.min(depth, 255) << 37)
+                | ((long) bound << 45) | ((long) currentAge << 47) | VALID;
+        int base = ((int) key & bucketMask) << 2;
+        long deepData = table[base + 1];
+        boolean sameKey = (table[base] ^ deepData) == key;
+        if (sameKey || deepData == MISS || depth >= depth(deepData) || age(deepData) != currentAge) {
+            if (sameKey && move == 0) {
+                data |= move(deepData); // keep the known best move when this result has none
+            }
+            table[base] = key ^ data;
+            table[base + 1] = data;
+        } else {
+            table[base + 2] = key ^ data;
+            table[base + 3] = data;
+        }
+    }
+
+    void clear() {
+        Arrays.fill(table, 0);
+    }
+}
+
+/*
+    Perft (leaf node counts) for the bitboard generator. Counting uses make/unmake on one board with
+    a preallocated move buffer per ply, so it does not allocate. With verifyHash set, every node also
+    checks the incremental Zobrist hash against a full recomputation.
+    main checks the published counts for the start position and "Kiwipete", and that every move the
+    legacy Board.movePiece accepts is also generated by the bitboard in the same positions
+    (the legacy rules are a subset: single pushes and diagonal captures only).
+*/
+class Perft {
+    private static final int MAX_PLY = 64;
+
+    private final int[][] moves = new int[MAX_PLY][BitBoard.MAX_MOVES];
+    boolean verifyHash;
+
+    long count(BitBoard board, int depth) {
+        return count(board, 0, depth);
+    }
+
+    private long count(BitBoard board, int ply, int depth) {
+        if (verifyHash && board.hash != board.computeHash()) {
+            throw new IllegalStateException("Zobrist hash drifted at " + board.toFen());
+        }
+        int[] buffer = moves[ply];
+        int n = board.generate(buffer, 0);
+        if (depth == 1 && !verifyHash) return n;
+        long nodes = 0;
+        for (int i = 0; i < n; i++) {
+            board.make(buffer[i]);
+            nodes += depth == 1 ? 1 : count(board, ply + 1, depth - 1);
+            if (verifyHash && depth == 1 && board.hash != board.computeHash()) {
+                throw new IllegalStateException("Zobrist hash drifted at " + board.toFen());
+            }
+            board.unmake(buffer[i]);
+        }
+        return nodes;
+    }
+
+    // Returns the number of legacy positions checked; throws if a legacy move is missing
+    static long crossCheckLegacy(Board board, Color toMove, int depth) {
+        BitBoard bits = BitBoard.fromBoard(board, toMove);
+        int[] generated = new int[BitBoard.MAX_MOVES];
+        int n = bits.generate(generated, 0);
+        long positions = 1;
+        for (int row = 0; row < 8; row++) {
+            for (int col = 0; col < 8; col++) {
+                Piece piece = board.getPieceAt(row, col);
+                if (piece == null || piece.color != toMove) continue;
+                for (Position target : piece.getLegalMoves(board)) {
+                    int from = row * 8 + col, to = target.row * 8 + target.col;
+                    boolean found = false;
+                    for (int i = 0; i < n && !found; i++) {
+                        found = BitBoard.from(generated[i]) == from && BitBoard.to(generated[i]) == to;
+                    }
+                    if (!found) {
+                        throw new IllegalStateException("Legacy move " + BitBoard.squareName(from) + BitBoard.squareName(to)
+                                + " missing in " + bits.toFen());
+                    }
+                    if (depth > 1) {
+                        Board next = copyOf(board);
+                        next.movePiece(new Position(row, col), new Position(target.row, target.col));
+                        positions += crossCheckLegacy(next, toMove == Color.WHITE ? Color.BLACK : Color.WHITE, depth - 1);
+                    }
+                }
+            }
+        }
+        return positions;
+    }
+
+    private static Board copyOf(Board board) {
+        Board copy = new Board();
+        for (int row = 0; row < 8; row++) {
+            for (int col = 0; col < 8; col++) {
+                Piece p = board.getPieceAt(row, col);
+                if (p instanceof Pawn) copy.placePiece(new Pawn(new Position(row, col), p.color));
+            }
+        }
+        return copy;
+    }
+
+    public static void main(String[] args) {
+        Perft perft = new Perft();
+        check(perft, BitBoard.START_FEN, new long[]{20, 400, 8902, 197281, 4865609});
+        check(perft, "r3k2r/p1ppqpb1/bn2pnp1/3PN3/1p2P3/2N2Q1p/PPPBBPPP/R3K2R w KQkq - 0 1", new long[]{48, 2039, 97862, 4085603});
+        check(perft, "8/2p5/3p4/KP5r/1R3p1k/8/4P1P1/8 w - - 0 1", new long[]{14, 191, 2812, 43238, 674624});
+
+        ChessGame game = new ChessGame();
+        game.startGame();
+        System.out.println("legacy cross-check: " + crossCheckLegacy(game.board, Color.WHITE, 4) + " positions agree");
+
+        BitBoard kiwipete = BitBoard.fromFen("r3k2r/p1ppqpb1/bn2pnp1/3PN3/1p2P3/2N2Q1p/PPPBBPPP/R3K2R w KQkq - 0 1");
+        String before = kiwipete.toFen();
+        perft.verifyHash = true;
+        perft.count(kiwipete, 3);
+        if (!kiwipete.toFen().equals(before) || kiwipete.hash != kiwipete.computeHash()) {
+            throw new IllegalStateException("make/unmake did not restore the position");
+        }
+        System.out.println("make/unmake and incremental Zobrist hash verified");
+    }
+
+    private static void check(Perft perft, String fen, long[] expected) {
+        BitBoard board = BitBoard.fromFen(fen);
+        for (int depth = 1; depth <= expected.length; depth++) {
+            long start = System.nanoTime();
+            long nodes = perft.count(board, depth);
+            double seconds = (System.nanoTime() - start) / 1e9;
+            System.out.printf("perft(%d) = %d %s  %.1f Mnps  [%s]%n", depth, nodes,
+                    nodes == expected[depth - 1] ? "ok" : "EXPECTED " + expected[depth - 1], nodes / seconds / 1e6, fen);
+            if (nodes != expected[depth - 1]) throw new IllegalStateException("perft mismatch");
+        }
+    }
+}
+
+/*
+    Alpha-beta search (negamax with principal variation search, quiescence on captures and
+    promotions, transposition table, killer moves) with iterative deepening, parallelised as lazy SMP:
+    every worker runs the whole iterative deepening loop on its own copy of the position on a
+    fork-join pool, and they share only the lock-free TranspositionTable, so each worker finds
+    what the others already searched. Odd workers start one ply deeper to spread the work.
+    Worker 0's last completed iteration is the answer. The time budget is checked every 1024 nodes.
+    An optional root filter restricts which root moves are searched (the legacy Board only allows a
+    subset of the moves BitBoard generates).
+*/
+class Search {
+    static final int INFINITY = 32000, MATE = 31000, MAX_PLY = 64;
+    private static final int[] VALUE = {100, 320, 330, 500, 900, 0};
+    private static final int[] CENTER = new int[64];
+
+    static {
+        for (int sq = 0; sq < 64; sq++) {
+            int r = sq >> 3, c = sq & 7;
+            CENTER[sq] = 14 - (Math.abs(2 * r - 7) + Math.abs(2 * c - 7)) * 2;
+        }
+    }
+
+    private static final class Shared {
+        static final Search ENGINE = new Search(new TranspositionTable(32), Runtime.getRuntime().availableProcessors());
+    }
+
+    // One engine per process, created on first use
+    static Search shared() {
+        return Shared.ENGINE;
+    }
+
+    static final class Result {
+        final int move, score, depth;
+        final long nodes, nanos;
+        final int[] pv;
+
+        Result(int move, int score, int depth, long nodes, long nanos, int[] pv) {
+            this.move = move;
+            this.score = score;
+            this.depth = depth;
+            this.nodes = nodes;
+            this.nanos = nanos;
+            this.pv = pv;
+        }
+
+        Position from() {
+            return new Position(BitBoard.from(move) >> 3, BitBoard.from(move) & 7);
+        }
+
+        Position to() {
+            return new Position(BitBoard.to(move) >> 3, BitBoard.to(move) & 7);
+        }
+
+        long nodesPerSecond() {
+            return nanos == 0 ? 0 : nodes * 1_000_000_000L / nanos;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder("depth ").append(depth);
+            if (Math.abs(score) > MATE - MAX_PLY) {
+                int plies = MATE - Math.abs(score);
+                sb.append(" score mate ").append(score > 0 ? (plies + 1) / 2 : -(plies / 2));
+            } else {
+                sb.append(" score cp ").append(score);
+            }
+            sb.append(" nodes ").append(nodes).append(" nps ").append(nodesPerSecond())
+                    .append(" time ").append(nanos / 1_000_000).append(" ms pv");
+            for (int m : pv) sb.append(' ').append(BitBoard.moveName(m));
+            return sb.toString();
+        }
+    }
+
+    private final TranspositionTable tt;
+    private final ForkJoinPool pool;
+    private final int threads;
+    private volatile boolean stopped;
+    private long deadline;
+    private long started;
+    private Worker[] workers;
+
+    Search(TranspositionTable tt, int threads) {
+        this.tt = tt;
+        this.threads = Math.max(1, threads);
+        this.pool = new ForkJoinPool(this.threads);
+    }
+
+    Result search(BitBoard root, Duration budget, int maxDepth, Consumer<Result> listener) {
+        return search(root, budget, maxDepth, move -> true, listener);
+    }
+
+    // Searches until the budget runs out or maxDepth completes; listener (may be null) sees each iteration.
+    // Only moves accepted by moveFilter are searched, at every ply (rule variants such as the legacy game)
+    synchronized Result search(BitBoard root, Duration budget, int maxDepth, IntPredicate moveFilter, Consumer<Result> listener) {
+        started = System.nanoTime();
+        deadline = started + budget.toNanos();
+        stopped = false;
+        tt.newSearch();
+        Worker[] ws = new Worker[threads];
+        for (int i = 0; i < threads; i++) {
+            ws[i] = new Worker(i, root, Math.min(maxDepth, MAX_PLY - 1), moveFilter, i == 0 ? listener : null);
+        }
+        workers = ws;
+        pool.invoke(new RecursiveAction() {
+            @Override
+            protected void compute() {
+                invokeAll(ws);
+            }
+        });
+        Result result = ws[0].result;
+        return new Result(result.move, result.score, result.depth, totalNodes(), System.nanoTime() - started, result.pv);
+    }
+
+    void shutdown() {
+        pool.shutdown();
+    }
+
+    // Racy sum, exact once the search has returned
+    private long totalNodes() {
+        long total = 0;
+        for (Worker w : workers) total += w.nodes;
+        return total;
+    }
+
+    private final class Worker extends RecursiveAction {
+        private final int id, maxDepth;
+        private final BitBoard board = new BitBoard();
+        private final IntPredicate moveFilter;
+        private final Consumer<Result> listener;
+        private final int[][] moves = new int[MAX_PLY][BitBoard.MAX_MOVES];
+        private final int[][] order = new int[MAX_PLY][BitBoard.MAX_MOVES];
+        private final int[][] pv = new int[MAX_PLY + 1][MAX_PLY + 1];
+        private final int[] pvLength = new int[MAX_PLY + 1];
+        private final int[][] killers = new int[MAX_PLY][2];
+        private final long[] path = new long[MAX_PLY + 1];
+        private int completedDepth;
+        long nodes;
+        Result result;
+
+        Worker(int id, BitBoard root, int maxDepth, IntPredicate moveFilter, Consumer<Result> listener) {
+            this.id = id;
+            this.maxDepth = maxDepth;
+            this.moveFilter = moveFilter;
+            this.listener = listener;
+            board.copyFrom(root);
+        }
+
+        @Override
+        protected void compute() {
+            result = new Result(0, board.inCheck() ? -MATE : 0, 0, 0, 0, new int[0]);
+            if (generate(0) == 0) {
+                if (id == 0) stopped = true;
+                return;
+            }
+            for (int depth = 1 + (id & 1); depth <= maxDepth; depth++) {
+                int score = negamax(depth, -INFINITY, INFINITY, 0);
+                if (aborted()) break;
+                completedDepth = depth;
+                result = new Result(pv[0][0], score, depth, totalNodes(), System.nanoTime() - started,
+                        Arrays.copyOf(pv[0], pvLength[0]));
+                if (listener != null) listener.accept(result);
+                // another iteration would not finish if the last one took over half the remaining time
+                if (id == 0 && System.nanoTime() - started > (deadline - started) / 2) break;
+                if (stopped || MATE - Math.abs(score) <= depth) break; // a shorter mate cannot exist
+            }
+            if (id == 0) stopped = true;
+        }
+
+        // Once an iteration has completed, a stop abandons the current one
+        private boolean aborted() {
+            return stopped && completedDepth > 0;
+        }
+
+        private void countNode() {
+            if ((++nodes & 1023) == 0 && System.nanoTime() > deadline) stopped = true;
+        }
+
+        private int negamax(int depth, int alpha, int beta, int ply) {
+            pvLength[ply] = ply;
+            path[ply] = board.hash;
+            for (int i = ply - 4; i >= 0; i -= 2) {
+                if (path[i] == board.hash) return 0; // repetition within the search line
+            }
+            if (depth <= 0) return quiesce(alpha, beta, ply);
+            countNode();
+
+            long data = tt.probe(board.hash);
+            int ttMove = 0;
+            if (data != TranspositionTable.MISS) {
+                ttMove = TranspositionTable.move(data);
+                if (ply > 0 && TranspositionTable.depth(data) >= depth) {
+                    int score = fromTable(TranspositionTable.score(data), ply);
+                    int bound = TranspositionTable.bound(data);
+                    if (bound == TranspositionTable.EXACT
+                            || (bound == TranspositionTable.LOWER && score >= beta)
+                            || (bound == TranspositionTable.UPPER && score <= alpha)) {
+                        return score;
+                    }
+                }
+            }
+
+            int n = generate(ply);
+            if (n == 0) return board.inCheck() ? -MATE + ply : 0;
+            if (ply >= MAX_PLY - 1) return evaluate();
+            score(ply, n, ttMove);
+
+            int originalAlpha = alpha, best = -INFINITY, bestMove = 0;
+            for (int i = 0; i < n; i++) {
+                int move = pickNext(ply, i, n);
+                board.make(move);
+                int score;
+                if (i == 0) {
+                    score = -negamax(depth - 1, -beta, -alpha, ply + 1);
+                } else {
+                    score = -negamax(depth - 1, -alpha - 1, -alpha, ply + 1);
+                    if (score > alpha && score < beta) score = -negamax(depth - 1, -beta, -alpha, ply + 1);
+                }
+                board.unmake(move);
+                if (aborted()) return 0;
+
+                if (score > best) {
+                    best = score;
+                    bestMove = move;
+                    if (score > alpha) {
+                        alpha = score;
+                        pv[ply][ply] = move;
+                        System.arraycopy(pv[ply + 1], ply + 1, pv[ply], ply + 1, pvLength[ply + 1] - ply - 1);
+                        pvLength[ply] = Math.max(pvLength[ply + 1], ply + 1);
+                        if (alpha >= beta) {
+                            if (!isCapture(move) && killers[ply][0] != move) {
+                                killers[ply][1] = killers[ply][0];
+                                killers[ply][0] = move;
+                            }
+                            break;
+                        }
+                    }
+                }
+            }
+            int bound = best <= originalAlpha ? TranspositionTable.UPPER
+                    : best >= beta ? TranspositionTable.LOWER : TranspositionTable.EXACT;
+            tt.store(board.hash, bestMove, toTable(best, ply), depth, bound);
+            return best;
+        }
+
+        private int quiesce(int alpha, int beta, int ply) {
+            countNode();
+            int standPat = evaluate();
+            if (standPat >= beta || ply >= MAX_PLY - 1) return standPat;
+            if (standPat > alpha) alpha = standPat;
+
+            int[] list = moves[ply];
+            int n = generate(ply), tactical = 0;
+            for (int i = 0; i < n; i++) {
+                if (isCapture(list[i]) || BitBoard.promotion(list[i]) != 0) list[tactical++] = list[i];
+            }
+            score(ply, tactical, 0);
+            for (int i = 0; i < tactical; i++) {
+                int move = pickNext(ply, i, tactical);
+                board.make(move);
+                int score = -quiesce(-beta, -alpha, ply + 1);
+                board.unmake(move);
+                if (aborted()) return 0;
+                if (score >= beta) return score;
+                if (score > alpha) alpha = score;
+            }
+            return alpha;
+        }
+
+        private int generate(int ply) {
+            int[] list = moves[ply];
+            int n = board.generate(list, 0);
+            int kept = 0;
+            for (int i = 0; i < n; i++) {
+                if (moveFilter.test(list[i])) list[kept++] = list[i];
+            }
+            return kept;
+        }
+
+        private boolean isCapture(int move) {
+            return (board.occupancy[board.sideToMove ^ 1] & (1L << BitBoard.to(move))) != 0
+                    || BitBoard.flag(move) == BitBoard.FLAG_EN_PASSANT;
+        }
+
+        // Ordering: table move, captures by most valuable victim / least valuable attacker, promotions, killers
+        private void score(int ply, int n, int ttMove) {
+            int[] list = moves[ply], scores = order[ply];
+            for (int i = 0; i < n; i++) {
+                int move = list[i];
+                if (move == ttMove) {
+                    scores[i] = 1_000_000;
+                } else if (isCapture(move)) {
+                    int victim = BitBoard.flag(move) == BitBoard.FLAG_EN_PASSANT ? BitBoard.PAWN : board.pieceAt(BitBoard.to(move)) % 6;
+                    scores[i] = 100_000 + VALUE[victim] * 10 - BitBoard.piece(move);
+                } else if (BitBoard.promotion(move) != 0) {
+                    scores[i] = 90_000 + BitBoard.promotion(move);
+                } else if (move == killers[ply][0]) {
+                    scores[i] = 80_000;
+                } else if (move == killers[ply][1]) {
+                    scores[i] = 70_000;
+                } else {
+                    scores[i] = CENTER[BitBoard.to(move)] - CENTER[BitBoard.from(move)];
+                }
+            }
+        }
+
+        // Selection sort step: moves the best remaining move to index i
+        private int pickNext(int ply, int i, int n) {
+            int[] list = moves[ply], scores = order[ply];
+            int best = i;
+            for (int j = i + 1; j < n; j++) {
+                if (scores[j] > scores[best]) best = j;
+            }
+            int move = list[best], score = scores[best];
+            list[best] = list[i];
+            scores[best] = scores[i];
+            list[i] = move;
+            scores[i] = score;
+            return move;
+        }
+
+        // Material plus centralisation and pawn advancement, from the side to move's point of view
+        private int evaluate() {
+            int score = 0;
+            for (int p = 0; p < 12; p++) {
+                int color = p / 6, type = p % 6, sign = color == board.sideToMove ? 1 : -1;
+                for (long bits = board.pieces[p]; bits != 0; bits &= bits - 1) {
+                    int sq = Long.numberOfTrailingZeros(bits);
+                    int value = VALUE[type];
+                    if (type == BitBoard.PAWN) {
+                        value += (color == BitBoard.WHITE ? 6 - (sq >> 3) : (sq >> 3) - 1) * 8 + CENTER[sq] / 2;
+                    } else if (type != BitBoard.KING) {
+                        value += CENTER[sq];
+                    }
+                    score += sign * value;
+                }
+            }
+            return score;
+        }
+    }
+
+    // Mate scores are stored relative to the node so they stay valid at any ply
+    private static int toTable(int score, int ply) {
+        return score > MATE - MAX_PLY ? score + ply : score < -MATE + MAX_PLY ? score - ply : score;
+    }
+
+    private static int fromTable(int score, int ply) {
+        return score > MATE - MAX_PLY ? score - ply : score < -MATE + MAX_PLY ? score + ply : score;
+    }
+
+    public static void main(String[] args) {
+        Search search = new Search(new TranspositionTable(64), Runtime.getRuntime().availableProcessors());
+        String[] fens = {
+                BitBoard.START_FEN,
+                "r3k2r/p1ppqpb1/bn2pnp1/3PN3/1p2P3/2N2Q1p/PPPBBPPP/R3K2R w KQkq - 0 1",
+                "r1bqkb1r/pppp1ppp/2n2n2/4p2Q/2B1P3/8/PPPP1PPP/RNB1K1NR w KQkq - 4 4", // mate in 1: Qxf7
+                "6k1/5ppp/8/8/8/8/5PPP/3R2K1 w - - 0 1" // mate in 1: Rd8
+        };
+        for (String fen : fens) {
+            System.out.println(fen);
+            Result result = search.search(BitBoard.fromFen(fen), Duration.ofSeconds(2), MAX_PLY - 1,
+                    r -> System.out.println("  info " + r));
+            System.out.println("  bestmove " + BitBoard.moveName(result.move) + " (" + result.nodesPerSecond() + " nps)");
+        }
+
+        ChessGame game = new ChessGame();
+        game.startGame();
+        Result legacy = game.bestMove(Duration.ofMillis(500));
+        System.out.println("legacy board: " + BitBoard.moveName(legacy.move) + " -> makeMove "
+                + game.makeMove(legacy.from(), legacy.to()));
+        search.shutdown();
+    }
+}
+
+enum MoveStatus {
+    ACCEPTED, ILLEGAL, GAME_OVER, NO_SUCH_GAME
+}
+
+/*
+    Hosts many games at once. Each game is an actor: commands go into its mailbox and a drain task on
+    a shared fork-join pool runs them one at a time, so a game's state has a single writer and moves
+    apply in submission order without locks. At most one drain per game is scheduled at a time; the
+    volatile `scheduled` flag orders each drain's writes before the next drain.
+    A live game is a BitBoard plus its move history as shorts (from | to << 6 | promotion << 12).
+    Games idle for longer than idleTimeout are evicted to one byte[] (FEN of the current position,
+    then the move history) and rehydrated by the next command that needs the position.
+    Games are held as BitBoards rather than ChessGame objects: a ChessGame is an object per piece and
+    square, too heavy for 100k resident games, and cannot be evicted to FEN and back. ChessGame games
+    are hosted through createGame(ChessGame), which takes over the game's position and keeps playing
+    it under ChessGame's rules (ChessGame.isLegacyMove); the ChessGame object itself stays
+    single-threaded and is not touched by the server.
+*/
+class GameServer {
+    private static final int BATCH = 64; // messages per drain before yielding the worker to other games
+    private static final ThreadLocal<int[]> MOVES = ThreadLocal.withInitial(() -> new int[BitBoard.MAX_MOVES]);
+
+    private final Map<Long, Game> games = new ConcurrentHashMap<>();
+    private final AtomicLong nextId = new AtomicLong(1);
+    private final ForkJoinPool pool;
+    private final long idleNanos;
+    private final ScheduledExecutorService sweeper = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "game-evictor");
+        t.setDaemon(true);
+        return t;
+    });
+    final AtomicLong evictions = new AtomicLong();
+    final AtomicLong rehydrations = new AtomicLong();
+
+    public GameServer(int workers, Duration idleTimeout) {
+        pool = new ForkJoinPool(workers, ForkJoinPool.defaultForkJoinWorkerThreadFactory, null, true);
+        idleNanos = idleTimeout.toNanos();
+        long period = Math.max(1, idleTimeout.toMillis() / 2);
+        sweeper.scheduleWithFixedDelay(this::evictIdle, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    public long createGame() {
+        return createGame(BitBoard.START_FEN);
+    }
+
+    public long createGame(String fen) {
+        return add(new Game(BitBoard.fromFen(fen), false));
+    }
+
+    // Hosts a copy of the legacy game's current position; moves follow ChessGame's rules, and a pawn
+    // reaching the last rank is entered as a plain move ("a7a8")
+    public long createGame(ChessGame legacy) {
+        return add(new Game(BitBoard.fromBoard(legacy.board, legacy.currentTurn), true));
+    }
+
+    private long add(Game game) {
+        long id = nextId.getAndIncrement();
+        games.put(id, game);
+        return id;
+    }
+
+    // Move in coordinate notation ("e2e4", "e7e8q"), applied after every move submitted before it
+    public CompletableFuture<MoveStatus> submitMove(long gameId, String move) {
+        return ask(gameId, game -> game.play(move), MoveStatus.NO_SUCH_GAME);
+    }
+
+    public CompletableFuture<String> fen(long gameId) {
+        return ask(gameId, game -> game.position().toFen(), null);
+    }
+
+    public CompletableFuture<List<String>> moves(long gameId) {
+        return ask(gameId, Game::history, null);
+    }
+
+    // A failing command completes its future exceptionally instead of stalling the mailbox.
+    // Every command counts as activity, reads included, so a game being watched is not evicted.
+    private <T> CompletableFuture<T> ask(long gameId, Function<Game, T> command, T missing) {
+        Game game = games.get(gameId);
+        if (game == null) return CompletableFuture.completedFuture(missing);
+        CompletableFuture<T> result = new CompletableFuture<>();
+        game.tell(() -> {
+            game.lastActive = System.nanoTime();
+            try {
+                result.complete(command.apply(game));
+            } catch (RuntimeException e) {
+                result.completeExceptionally(e);
+            }
+        });
+        return result;
+    }
+
+    public void removeGame(long gameId) {
+        games.remove(gameId);
+    }
+
+    public int gameCount() {
+        return games.size();
+    }
+
+    public int liveGames() {
+        int live = 0;
+        for (Game game : games.values()) {
+            if (game.live) live++;
+        }
+        return live;
+    }
+
+    void evictIdle() {
+        evictIdle(idleNanos);
+    }
+
+    // Evicts through each game's mailbox, so it never races a move
+    void evictIdle(long idleNanos) {
+        long cutoff = System.nanoTime() - idleNanos;
+        for (Game game : games.values()) {
+            if (game.live && game.lastActive < cutoff) {
+                game.tell(() -> {
+                    if (game.live && game.lastActive < cutoff) game.evict();
+                });
+            }
+        }
+    }
+
+    public void shutdown() {
+        sweeper.shutdownNow();
+        pool.shutdown();
+    }
+
+    // Out-of-range results for malformed names simply match no move
+    private static int square(String name, int i) {
+        return (8 - (name.charAt(i + 1) - '0')) * 8 + (name.charAt(i) - 'a');
+    }
+
+    private final class Game implements Runnable {
+        private final Queue<Runnable> mailbox = new ConcurrentLinkedQueue<>();
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+        volatile boolean live = true;
+        volatile long lastActive = System.nanoTime();
+        private final boolean legacy; // ChessGame's rules instead of full chess
+
+        // Owned by the drain
+        private BitBoard board;
+        private byte[] evicted;
+        private short[] history = new short[8];
+        private int historySize;
+        private boolean over;
+
+        Game(BitBoard board, boolean legacy) {
+            this.board = board;
+            this.legacy = legacy;
+        }
+
+        void tell(Runnable message) {
+            mailbox.add(message);
+            if (scheduled.compareAndSet(false, true)) pool.execute(this);
+        }
+
+        @Override
+        public void run() {
+            for (int i = 0; i < BATCH; i++) {
+                Runnable message = mailbox.poll();
+                if (message == null) break;
+                message.run();
+            }
+            scheduled.set(false);
+            if (!mailbox.isEmpty() && scheduled.compareAndSet(false, true)) pool.execute(this);
+        }
+
+        MoveStatus play(String name) {
+            if (over) return MoveStatus.GAME_OVER;
+            if (name.length() < 4 || name.length() > 5) return MoveStatus.ILLEGAL;
+            int from = square(name, 0), to = square(name, 2);
+            int promotion = name.length() == 5 ? "nbrq".indexOf(name.charAt(4)) + 1 : 0;
+            if (legacy && promotion == 0) promotion = -1; // the queen promotion stands in for a plain last-rank move
+            BitBoard b = position();
+            int[] moves = MOVES.get();
+            int n = b.generate(moves, 0), move = 0;
+            for (int i = 0; i < n && move == 0; i++) {
+                int m = moves[i];
+                int p = BitBoard.promotion(m);
+                if (BitBoard.from(m) == from && BitBoard.to(m) == to && allowed(m)
+                        && (p == promotion || (promotion < 0 && (p == 0 || p == BitBoard.QUEEN)))) {
+                    move = m;
+                }
+            }
+            if (move == 0) return MoveStatus.ILLEGAL;
+            b.make(move);
+            b.forgetHistory();
+            if (historySize == history.length) history = Arrays.copyOf(history, historySize * 2);
+            history[historySize++] = (short) (BitBoard.from(move) | BitBoard.to(move) << 6 | BitBoard.promotion(move) << 12);
+            over = true;
+            for (int i = 0, left = b.generate(moves, 0); i < left && over; i++) {
+                over = !allowed(moves[i]);
+            }
+            return MoveStatus.ACCEPTED;
+        }
+
+        private boolean allowed(int move) {
+            return !legacy || ChessGame.isLegacyMove(move);
+        }
+
+        BitBoard position() {
+            if (board == null) rehydrate();
+            return board;
+        }
+
+        List<String> history() {
+            position();
+            List<String> names = new ArrayList<>(historySize);
+            for (int i = 0; i < historySize; i++) {
+                int m = history[i];
+                names.add(BitBoard.moveName(BitBoard.encode(m & 63, (m >> 6) & 63, 0, m >> 12, 0)));
+            }
+            return names;
+        }
+
+        // Layout: fen length, fen (ASCII), then the history as big-endian shorts
+        void evict() {
+            byte[] fen = board.toFen().getBytes(StandardCharsets.US_ASCII);
+            ByteBuffer buf = ByteBuffer.allocate(1 + fen.length + historySize * 2);
+            buf.put((byte) fen.length).put(fen);
+            for (int i = 0; i < historySize; i++) buf.putShort(history[i]);
+            evicted = buf.array();
+            board = null;
+            history = null;
+            live = false;
+            evictions.incrementAndGet();
+        }
+
+        private void rehydrate() {
+            ByteBuffer buf = ByteBuffer.wrap(evicted);
+            int fenLength = buf.get() & 0xFF;
+            board = BitBoard.fromFen(new String(evicted, 1, fenLength, StandardCharsets.US_ASCII));
+            buf.position(1 + fenLength);
+            historySize = buf.remaining() / 2;
+            history = new short[Math.max(8, historySize)];
+            for (int i = 0; i < historySize; i++) history[i] = buf.getShort();
+            evicted = null;
+            live = true;
+            rehydrations.incrementAndGet();
+        }
+    }
+}
+
+/*
+    Load test: opens N games (100k by default) and has one client thread per core play moves into
+    randomly chosen games, keeping up to 256 moves in flight per client. Each game follows a fixed
+    cycle of knight moves so every move is legal; any other status means moves were lost or
+    reordered. Games are partitioned by client so each game's moves are submitted from one thread
+    in order. The idle timeout outlasts the run so latency is measured against live games only;
+    eviction and rehydration are exercised afterwards by sweeping with a zero timeout.
+    Reports submit-to-completion latency percentiles, throughput and heap use.
+*/
+class GameServerLoadTest {
+    private static final String[][] CYCLES = {
+            {"g1f3", "g8f6", "f3g1", "f6g8"},
+            {"b1c3", "b8c6", "c3b1", "c6b8"},
+            {"g1h3", "b8a6", "h3g1", "a6b8"}
+    };
+
+    public static void main(String[] args) throws Exception {
+        int gameCount = args.length > 0 ? Integer.parseInt(args[0]) : 100_000;
+        int movesPerClient = args.length > 1 ? Integer.parseInt(args[1]) : 500_000;
+        int clients = Runtime.getRuntime().availableProcessors();
+        GameServer server = new GameServer(clients, Duration.ofHours(1));
+
+        long[] ids = new long[gameCount];
+        for (int i = 0; i < gameCount; i++) ids[i] = server.createGame();
+        System.gc();
+        Runtime rt = Runtime.getRuntime();
+        System.out.printf("%d games, heap %d MB%n", gameCount, (rt.totalMemory() - rt.freeMemory()) >> 20);
+
+        long[][] latencies = new long[clients][movesPerClient];
+        AtomicLong failures = new AtomicLong();
+        Thread[] threads = new Thread[clients];
+        long start = System.nanoTime();
+        for (int c = 0; c < clients; c++) {
+            int client = c;
+            threads[c] = new Thread(() -> {
+                SplittableRandom random = new SplittableRandom(client);
+                int[] ply = new int[gameCount];
+                Semaphore inFlight = new Semaphore(256);
+                for (int i = 0; i < movesPerClient; i++) {
+                    int g = random.nextInt(gameCount / clients) * clients + client;
+                    if (g >= gameCount) g = client;
+                    String[] cycle = CYCLES[g % CYCLES.length];
+                    String move = cycle[ply[g]++ % cycle.length];
+                    inFlight.acquireUninterruptibly();
+                    long submitted = System.nanoTime();
+                    int sample = i;
+                    server.submitMove(ids[g], move).thenAccept(status -> {
+                        latencies[client][sample] = System.nanoTime() - submitted;
+                        if (status != MoveStatus.ACCEPTED) failures.incrementAndGet();
+                        inFlight.release();
+                    });
+                }
+                inFlight.acquireUninterruptibly(256);
+            }, "client-" + c);
+            threads[c].start();
+        }
+        for (Thread t : threads) t.join();
+        long elapsed = System.nanoTime() - start;
+        if (server.liveGames() != gameCount) {
+            throw new IllegalStateException(gameCount - server.liveGames() + " games were evicted during the run");
+        }
+
+        long[] all = new long[clients * movesPerClient];
+        for (int c = 0; c < clients; c++) System.arraycopy(latencies[c], 0, all, c * movesPerClient, movesPerClient);
+        Arrays.sort(all);
+        System.out.printf("%d moves in %d ms: %.0f moves/s, %d failed%n", all.length, elapsed / 1_000_000,
+                all.length * 1e9 / elapsed, failures.get());
+        System.out.printf("latency us  p50 %d  p99 %d  p99.9 %d  max %d%n", all[all.length / 2] / 1000,
+                all[(int) (all.length * 0.99)] / 1000, all[(int) (all.length * 0.999)] / 1000, all[all.length - 1] / 1000);
+        System.out.printf("live %d / %d, evictions %d, rehydrations %d%n", server.liveGames(), server.gameCount(),
+                server.evictions.get(), server.rehydrations.get());
+
+        server.evictIdle(0);
+        while (server.liveGames() > 0) Thread.sleep(10); // evictions run through the mailboxes
+        System.gc();
+        System.out.printf("after idle: live %d, heap %d MB%n", server.liveGames(), (rt.totalMemory() - rt.freeMemory()) >> 20);
+        System.out.println("game " + ids[0] + ": " + server.fen(ids[0]).get() + "  moves " + server.moves(ids[0]).get().size());
+        server.shutdown();
+    }
 }
 
 // change class Name to fileName
@@ -12,8 +12,27 @@
 
 */
 
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.lang.management.ManagementFactory;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
 
 
 abstract class Vehicle{
@@ -28,6 +47,13 @@ abstract class Vehicle{
     public VehicleType getType(){
         return type;
     }
+    
+    public static Vehicle of(int id, VehicleType type){
+        switch(type){
+            case BIKE: return new Bike(id);
+            default: return new Car(id);
+        }
+    }
 }
 
 class Car extends Vehicle{
@@ -47,13 +73,21 @@ class Bike extends Vehicle{
 
 class ParkingSpot{
     int id;
+    int levelNo;
+    int slot; // position along the level, used for distance to gates
     boolean isAvailable;
     VehicleType spotType;
     Vehicle currentVehicle;
     
     public ParkingSpot(int id, VehicleType vehicleType){
+        this(id, vehicleType, 0, id);
+    }
+    
+    public ParkingSpot(int id, VehicleType vehicleType, int levelNo, int slot){
         this.id =id;
         this.spotType = vehicleType;
+        this.levelNo = levelNo;
+        this.slot = slot;
         this.isAvailable = true; 
     }
     
@@ -101,18 +135,27 @@ class Level{
     }
     
     public boolean parkVehicle(Vehicle vehicle){
+        ParkingSpot spot = claimSpot(vehicle);
+        if(spot != null){
+              String msg = "Car " + vehicle.id + " is parked at " + "parking spot "+ "no " +spot.id + " At level " +levelNo;
+              System.out.println(msg);
+            return true;
+        }
+        return false;
+    }
+    
+    // first free spot of the vehicle's type in list order, or null
+    public synchronized ParkingSpot claimSpot(Vehicle vehicle){
         for(ParkingSpot spot : parkingSpots){
             if(spot.isAvailable && spot.spotType == vehicle.type){
                 spot.assignVehicle(vehicle);
-                  String msg = "Car " + vehicle.id + " is parked at " + "parking spot "+ "no " +spot.id + " At level " +levelNo;
-                  System.out.println(msg);
-                return true;
+                return spot;
             }
         }
-        return false;
+        return null;
     }
     
-    public boolean releaseVehicle(Vehicle vehicle){
+    public synchronized boolean releaseVehicle(Vehicle vehicle){
         for(ParkingSpot spot : parkingSpots){
             if(spot.currentVehicle == vehicle && ! spot.isAvailable){
                 spot.release();
@@ -122,6 +165,14 @@ class Level{
         return false;
     }
     
+    public synchronized void releaseSpot(ParkingSpot spot){
+        spot.release();
+    }
+    
+    public List<ParkingSpot> getSpots(){
+        return parkingSpots;
+    }
+    
     
     
 }
@@ -130,36 +181,766 @@ enum VehicleType{
     CAR, BIKE;
 }
 
+ // Entry gate, exit gate or elevator that spots can be allocated relative to
+class Gate{
+    int id;
+    int levelNo;
+    int slot;
+    
+    public Gate(int id, int levelNo, int slot){
+        this.id = id;
+        this.levelNo = levelNo;
+        this.slot = slot;
+    }
+}
+
+interface SpotDistance{
+    int distance(Gate gate, ParkingSpot spot);
+    
+    // walking distance along a level plus a fixed cost per level of ramp/elevator travel
+    static SpotDistance manhattan(int levelCost){
+        return (gate, spot) -> Math.abs(gate.levelNo - spot.levelNo) * levelCost + Math.abs(gate.slot - spot.slot);
+    }
+}
+
+// Decides which free spot a vehicle gets. Implementations must be thread safe.
+// gate is null when the caller did not say where the vehicle entered.
+interface SpotAllocationStrategy{
+    ParkingSpot allocate(Vehicle vehicle, Gate gate);
+    void release(ParkingSpot spot);
+}
+
+// Original behaviour: first free spot scanning levels in order, gate is ignored
+class FirstAvailableStrategy implements SpotAllocationStrategy{
+    private final List<Level> levels;
+    
+    public FirstAvailableStrategy(List<Level> levels){
+        this.levels = levels;
+    }
+    
+    public ParkingSpot allocate(Vehicle vehicle, Gate gate){
+        for(Level level : levels){
+            ParkingSpot spot = level.claimSpot(vehicle);
+            if(spot != null){
+                return spot;
+            }
+        }
+        return null;
+    }
+    
+    public void release(ParkingSpot spot){
+        levels.get(spot.levelNo).releaseSpot(spot);
+    }
+}
+
+// Indexed binary min-heap of spot indexes keyed by distance; supports O(log n) removal of any spot
+class SpotHeap{
+    private final int[] heap;
+    private final int[] pos;   // spot index -> slot in heap, -1 when absent
+    private final int[] key;   // spot index -> distance
+    private int size;
+    
+    public SpotHeap(int[] key){
+        this.key = key;
+        this.heap = new int[key.length];
+        this.pos = new int[key.length];
+        Arrays.fill(pos, -1);
+    }
+    
+    public boolean isEmpty(){
+        return size == 0;
+    }
+    
+    public int size(){
+        return size;
+    }
+    
+    public boolean contains(int spot){
+        return pos[spot] >= 0;
+    }
+    
+    public void add(int spot){
+        if(pos[spot] >= 0) return;
+        heap[size] = spot;
+        pos[spot] = size;
+        siftUp(size++);
+    }
+    
+    public int poll(){
+        int top = heap[0];
+        remove(top);
+        return top;
+    }
+    
+    public boolean remove(int spot){
+        int i = pos[spot];
+        if(i < 0) return false;
+        int last = heap[--size];
+        pos[spot] = -1;
+        if(i != size){
+            heap[i] = last;
+            pos[last] = i;
+            siftDown(i);
+            siftUp(pos[last]);
+        }
+        return true;
+    }
+    
+    private boolean less(int a, int b){
+        // ties broken by spot index so allocation order is deterministic
+        return key[a] < key[b] || (key[a] == key[b] && a < b);
+    }
+    
+    private void siftUp(int i){
+        int spot = heap[i];
+        while(i > 0){
+            int parent = (i - 1) >>> 1;
+            if(!less(spot, heap[parent])) break;
+            heap[i] = heap[parent];
+            pos[heap[i]] = i;
+            i = parent;
+        }
+        heap[i] = spot;
+        pos[spot] = i;
+    }
+    
+    private void siftDown(int i){
+        int spot = heap[i];
+        int half = size >>> 1;
+        while(i < half){
+            int child = 2 * i + 1;
+            if(child + 1 < size && less(heap[child + 1], heap[child])) child++;
+            if(!less(heap[child], spot)) break;
+            heap[i] = heap[child];
+            pos[heap[i]] = i;
+            i = child;
+        }
+        heap[i] = spot;
+        pos[spot] = i;
+    }
+}
+
+/*
+    Nearest free spot to the requesting gate.
+    Every gate keeps one SpotHeap per vehicle type holding the free spots of that type ordered by distance
+    from the gate, so nearest lookup is O(log n) and park/release cost O(gates * log n).
+    A lock per vehicle type keeps the heaps of all gates consistent with each other and with the spots.
+*/
+class NearestSpotStrategy implements SpotAllocationStrategy{
+    private final List<ParkingSpot> spots;
+    private final Map<Integer, SpotHeap[]> heapsByGate = new HashMap<>();
+    private final int defaultGateId; // used when park is called without a gate
+    private final Map<ParkingSpot, Integer> indexOf = new HashMap<>();
+    private final ReentrantLock[] locks = new ReentrantLock[VehicleType.values().length];
+    
+    public NearestSpotStrategy(List<ParkingSpot> spots, List<Gate> gates, SpotDistance distance){
+        if(gates.isEmpty()){
+            throw new IllegalArgumentException("at least one gate is required");
+        }
+        this.spots = spots;
+        this.defaultGateId = gates.get(0).id;
+        for(int t=0;t<locks.length;t++){
+            locks[t] = new ReentrantLock();
+        }
+        for(int i=0;i<spots.size();i++){
+            indexOf.put(spots.get(i), i);
+        }
+        for(Gate gate : gates){
+            int[] key = new int[spots.size()];
+            for(int i=0;i<spots.size();i++){
+                key[i] = distance.distance(gate, spots.get(i));
+            }
+            SpotHeap[] heaps = new SpotHeap[locks.length];
+            for(int t=0;t<heaps.length;t++){
+                heaps[t] = new SpotHeap(key);
+            }
+            for(int i=0;i<spots.size();i++){
+                ParkingSpot spot = spots.get(i);
+                if(spot.isSpotAvailable()){
+                    heaps[spot.spotType.ordinal()].add(i);
+                }
+            }
+            heapsByGate.put(gate.id, heaps);
+        }
+    }
+    
+    public ParkingSpot allocate(Vehicle vehicle, Gate gate){
+        int gateId = gate == null ? defaultGateId : gate.id;
+        SpotHeap[] heaps = heapsByGate.get(gateId);
+        if(heaps == null){
+            throw new IllegalArgumentException("unknown gate " + gateId);
+        }
+        int type = vehicle.type.ordinal();
+        ReentrantLock lock = locks[type];
+        lock.lock();
+        try{
+            SpotHeap heap = heaps[type];
+            if(heap.isEmpty()){
+                return null;
+            }
+            int index = heap.poll();
+            for(SpotHeap[] other : heapsByGate.values()){
+                other[type].remove(index);
+            }
+            ParkingSpot spot = spots.get(index);
+            spot.assignVehicle(vehicle);
+            return spot;
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    public void release(ParkingSpot spot){
+        Integer index = indexOf.get(spot);
+        if(index == null){
+            throw new IllegalArgumentException("spot " + spot.id + " is not managed by this strategy");
+        }
+        int type = spot.spotType.ordinal();
+        ReentrantLock lock = locks[type];
+        lock.lock();
+        try{
+            spot.release();
+            for(SpotHeap[] heaps : heapsByGate.values()){
+                heaps[type].add(index);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+}
+
  class ParkingManager{
     List<Level> levels = new ArrayList<>();
+    List<ParkingSpot> spots = new ArrayList<>();
     int numLevels;
+    int siteId;
+    private volatile SpotAllocationStrategy strategy;
+    private volatile OccupancyJournal journal;
+    private final Map<Integer, ParkingSpot> parked = new ConcurrentHashMap<>();
+    volatile boolean verbose = true;
     
     public ParkingManager(int numLevels){
+        this(0, numLevels, 10, 5);
+    }
+    
+    public ParkingManager(int siteId, int numLevels, int carSpotsPerLevel, int bikeSpotsPerLevel){
+        this.siteId = siteId;
         this.numLevels = numLevels;
         
         for(int i=0;i<numLevels;i++){
             List<ParkingSpot> parkingSpots = new ArrayList<>();
-            for(int j=0;j<10;j++){
-                parkingSpots.add(new ParkingSpot(i,VehicleType.CAR));
+            for(int j=0;j<carSpotsPerLevel;j++){
+                parkingSpots.add(new ParkingSpot(spots.size() + parkingSpots.size(),VehicleType.CAR, i, j));
             }
             
             
-            for(int j=0;j<5;j++){
-                parkingSpots.add(new ParkingSpot(i,VehicleType.BIKE));
+            for(int j=0;j<bikeSpotsPerLevel;j++){
+                parkingSpots.add(new ParkingSpot(spots.size() + parkingSpots.size(),VehicleType.BIKE, i, carSpotsPerLevel + j));
             }
             
+            spots.addAll(parkingSpots);
             levels.add(new Level(i,parkingSpots));
         }
         
+        strategy = new FirstAvailableStrategy(levels);
+    }
+    
+    // Swap the allocator; should be done before vehicles start arriving and after any journal restore
+    public void setAllocationStrategy(SpotAllocationStrategy strategy){
+        this.strategy = strategy;
+    }
+    
+    void attachJournal(OccupancyJournal journal){
+        this.journal = journal;
+    }
+    
+    public List<ParkingSpot> getSpots(){
+        return spots;
     }
     
     public boolean park(Vehicle vehicle){
-        for(Level level: levels){
-            if(level.parkVehicle(vehicle)){
-                return true;
+        return park(vehicle, null) != null;
+    }
+    
+    // Throws IllegalArgumentException if the vehicle is already parked
+    public ParkingSpot park(Vehicle vehicle, Gate gate){
+        if(parked.containsKey(vehicle.id)){
+            throw new IllegalArgumentException("vehicle " + vehicle.id + " is already parked");
+        }
+        ParkingSpot spot = strategy.allocate(vehicle, gate);
+        if(spot != null){
+            // release() finds the vehicle only through parked and journals under the same spot lock,
+            // so publishing and journaling together keeps PARK ahead of its RELEASE in the journal
+            synchronized(spot){
+                if(parked.putIfAbsent(vehicle.id, spot) != null){
+                    strategy.release(spot); // lost a race with a concurrent park of the same vehicle
+                    throw new IllegalArgumentException("vehicle " + vehicle.id + " is already parked");
+                }
+                OccupancyJournal j = journal;
+                if(j != null){
+                    j.recordPark(siteId, spot.id, vehicle.id);
+                }
+            }
+            if(verbose){
+                System.out.println("Car " + vehicle.id + " is parked at parking spot no " + spot.id + " At level " + spot.levelNo);
             }
         }
-        return false;
+        return spot;
+    }
+    
+    public boolean release(Vehicle vehicle){
+        ParkingSpot spot = parked.remove(vehicle.id);
+        if(spot == null){
+            return false;
+        }
+        OccupancyJournal j = journal;
+        if(j == null){
+            strategy.release(spot);
+            return true;
+        }
+        synchronized(spot){
+            strategy.release(spot);
+            j.recordRelease(siteId, spot.id);
+        }
+        return true;
+    }
+    
+    // Applies recovered state directly to the spots, bypassing the strategy and the journal
+    void restoreSpot(int index, int vehicleId){
+        ParkingSpot spot = spots.get(index);
+        if(!spot.isSpotAvailable()){
+            parked.remove(spot.currentVehicle.id);
+            spot.release();
+        }
+        if(vehicleId >= 0){
+            Vehicle vehicle = Vehicle.of(vehicleId, spot.spotType);
+            spot.assignVehicle(vehicle);
+            parked.put(vehicleId, spot);
+        }
+    }
+    
+    public int occupiedCount(){
+        return parked.size();
+    }
+}
+
+/*
+    Crash-safe occupancy for one or more sites.
+    Every park/release is appended as a fixed 16 byte record to a memory-mapped log segment
+    (site, spot, vehicle id or -1, header). Records hold absolute spot state, so replaying one
+    that is already reflected in a snapshot is harmless.
+    Every snapshotEvery records (or when a segment fills) the log rotates to a new generation and a
+    snapshot of each site is written: an occupancy bitmap plus the vehicle ids of occupied spots.
+    Startup loads the snapshot and replays only the segments written after it.
+*/
+class OccupancyJournal implements Closeable{
+    private static final int RECORD_SIZE = 16;
+    private static final int RECORD_MAGIC = 0x5A7E0000;
+    private static final int OP_PARK = 1;
+    private static final int OP_RELEASE = 2;
+    private static final int SNAPSHOT_MAGIC = 0x50415253;
+    private static final String SNAPSHOT_FILE = "occupancy.snap";
+    
+    private final Path dir;
+    private final Map<Integer, ParkingManager> sites;
+    private final int segmentRecords;
+    private final int snapshotEvery;
+    private long generation;
+    private FileChannel channel;
+    private MappedByteBuffer segment;
+    private int sinceSnapshot;
+    
+    private OccupancyJournal(Path dir, Map<Integer, ParkingManager> sites, int segmentRecords, int snapshotEvery){
+        this.dir = dir;
+        this.sites = sites;
+        this.segmentRecords = segmentRecords;
+        this.snapshotEvery = Math.min(snapshotEvery, segmentRecords);
+    }
+    
+    public static OccupancyJournal open(Path dir, List<ParkingManager> managers) throws IOException{
+        return open(dir, managers, 1 << 16, 1 << 15);
+    }
+    
+    // Restores every site from dir, then starts journaling their changes
+    public static OccupancyJournal open(Path dir, List<ParkingManager> managers, int segmentRecords, int snapshotEvery) throws IOException{
+        Files.createDirectories(dir);
+        Map<Integer, ParkingManager> sites = new HashMap<>();
+        for(ParkingManager manager : managers){
+            sites.put(manager.siteId, manager);
+        }
+        OccupancyJournal journal = new OccupancyJournal(dir, sites, segmentRecords, snapshotEvery);
+        journal.recover();
+        for(ParkingManager manager : managers){
+            manager.attachJournal(journal);
+        }
+        return journal;
+    }
+    
+    public synchronized void recordPark(int siteId, int spot, int vehicleId){
+        append(siteId, spot, vehicleId, OP_PARK);
+    }
+    
+    public synchronized void recordRelease(int siteId, int spot){
+        append(siteId, spot, -1, OP_RELEASE);
+    }
+    
+    private void append(int siteId, int spot, int vehicleId, int op){
+        if(!segment.hasRemaining() || sinceSnapshot >= snapshotEvery){
+            try{
+                snapshot();
+            } catch (IOException e){
+                throw new IllegalStateException("could not rotate occupancy journal", e);
+            }
+        }
+        segment.putInt(siteId);
+        segment.putInt(spot);
+        segment.putInt(vehicleId);
+        // header last, so a torn record is never mistaken for a complete one on replay
+        segment.putInt(RECORD_MAGIC | op);
+        sinceSnapshot++;
+    }
+    
+    /*
+        Rotates to a fresh segment, then captures the spots. The capture can already contain changes
+        written to the new segment; replaying those again is idempotent.
+    */
+    public synchronized void snapshot() throws IOException{
+        long next = generation + 1;
+        openSegment(next);
+        
+        int size = 16;
+        for(ParkingManager site : sites.values()){
+            size += 8 + ((site.spots.size() + 63) >>> 6) * 8 + site.spots.size() * 4;
+        }
+        ByteBuffer buf = ByteBuffer.allocate(size);
+        buf.putInt(SNAPSHOT_MAGIC).putLong(next).putInt(sites.size());
+        for(ParkingManager site : sites.values()){
+            List<ParkingSpot> spots = site.spots;
+            long[] bitmap = new long[(spots.size() + 63) >>> 6];
+            for(int i=0;i<spots.size();i++){
+                if(!spots.get(i).isSpotAvailable()){
+                    bitmap[i >>> 6] |= 1L << i;
+                }
+            }
+            buf.putInt(site.siteId).putInt(spots.size());
+            for(long word : bitmap){
+                buf.putLong(word);
+            }
+            for(int i=0;i<spots.size();i++){
+                Vehicle vehicle = spots.get(i).currentVehicle;
+                if((bitmap[i >>> 6] & (1L << i)) != 0){
+                    buf.putInt(vehicle == null ? -1 : vehicle.id);
+                }
+            }
+        }
+        buf.flip();
+        
+        Path tmp = dir.resolve(SNAPSHOT_FILE + ".tmp");
+        try(FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)){
+            while(buf.hasRemaining()){
+                out.write(buf);
+            }
+            out.force(true);
+        }
+        Files.move(tmp, dir.resolve(SNAPSHOT_FILE), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        
+        for(Map.Entry<Long, Path> old : segments().entrySet()){
+            if(old.getKey() < next){
+                Files.deleteIfExists(old.getValue());
+            }
+        }
+        sinceSnapshot = 0;
+    }
+    
+    private void recover() throws IOException{
+        long fromGeneration = 0;
+        Path snapshot = dir.resolve(SNAPSHOT_FILE);
+        if(Files.exists(snapshot)){
+            ByteBuffer buf = ByteBuffer.wrap(Files.readAllBytes(snapshot));
+            if(buf.getInt() != SNAPSHOT_MAGIC){
+                throw new IOException("corrupt occupancy snapshot " + snapshot);
+            }
+            fromGeneration = buf.getLong();
+            int siteCount = buf.getInt();
+            for(int s=0;s<siteCount;s++){
+                int siteId = buf.getInt();
+                int spotCount = buf.getInt();
+                long[] bitmap = new long[(spotCount + 63) >>> 6];
+                for(int w=0;w<bitmap.length;w++){
+                    bitmap[w] = buf.getLong();
+                }
+                ParkingManager site = sites.get(siteId);
+                for(int w=0;w<bitmap.length;w++){
+                    for(long bits = bitmap[w]; bits != 0; bits &= bits - 1){
+                        int spot = (w << 6) + Long.numberOfTrailingZeros(bits);
+                        int vehicleId = buf.getInt();
+                        if(site != null && spot < site.spots.size()){
+                            site.restoreSpot(spot, vehicleId);
+                        }
+                    }
+                }
+            }
+        }
+        
+        long last = fromGeneration;
+        for(Map.Entry<Long, Path> entry : segments().entrySet()){
+            if(entry.getKey() < fromGeneration){
+                continue;
+            }
+            replay(entry.getValue());
+            last = Math.max(last, entry.getKey());
+        }
+        generation = last;
+        snapshot();
+    }
+    
+    private void replay(Path file) throws IOException{
+        try(FileChannel in = FileChannel.open(file, StandardOpenOption.READ)){
+            MappedByteBuffer buf = in.map(FileChannel.MapMode.READ_ONLY, 0, in.size());
+            while(buf.remaining() >= RECORD_SIZE){
+                int siteId = buf.getInt();
+                int spot = buf.getInt();
+                int vehicleId = buf.getInt();
+                int header = buf.getInt();
+                if((header & 0xFFFF0000) != RECORD_MAGIC){
+                    break; // end of written records
+                }
+                ParkingManager site = sites.get(siteId);
+                if(site != null && spot >= 0 && spot < site.spots.size()){
+                    site.restoreSpot(spot, (header & 0xFFFF) == OP_PARK ? vehicleId : -1);
+                }
+            }
+        }
+    }
+    
+    private void openSegment(long gen) throws IOException{
+        if(channel != null){
+            channel.close();
+        }
+        Path file = dir.resolve(String.format("occupancy-%016d.log", gen));
+        channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        segment = channel.map(FileChannel.MapMode.READ_WRITE, 0, (long) segmentRecords * RECORD_SIZE);
+        generation = gen;
+    }
+    
+    private Map<Long, Path> segments() throws IOException{
+        Map<Long, Path> found = new TreeMap<>();
+        try(DirectoryStream<Path> stream = Files.newDirectoryStream(dir, "occupancy-*.log")){
+            for(Path file : stream){
+                String name = file.getFileName().toString();
+                found.put(Long.parseLong(name.substring("occupancy-".length(), name.length() - ".log".length())), file);
+            }
+        }
+        return found;
+    }
+    
+    // Flushes the current segment to disk; without it records still survive a process crash via the page cache
+    public synchronized void force(){
+        segment.force();
+    }
+    
+    public synchronized void close() throws IOException{
+        for(ParkingManager site : sites.values()){
+            site.attachJournal(null);
+        }
+        segment.force();
+        channel.close();
+    }
+}
+
+/*
+    Discrete-event simulation of a garage.
+    Each gate sees Poisson arrivals (exponential inter-arrival times), vehicle types are drawn from a
+    weighted mix and dwell times are exponential. Events run on a virtual clock; speedup > 0 paces
+    them against the wall clock (e.g. 60 = one simulated minute per second), 0 runs as fast as possible.
+*/
+class ParkingSimulator{
+    private static final int ARRIVAL = 0;
+    private static final int DEPARTURE = 1;
+    
+    static class Event implements Comparable<Event>{
+        double time;
+        int kind;
+        Gate gate;
+        Vehicle vehicle;
+        
+        Event(double time, int kind, Gate gate, Vehicle vehicle){
+            this.time = time;
+            this.kind = kind;
+            this.gate = gate;
+            this.vehicle = vehicle;
+        }
+        
+        public int compareTo(Event other){
+            return Double.compare(time, other.time);
+        }
+    }
+    
+    private final ParkingManager manager;
+    private final List<Gate> gates;
+    private final double arrivalsPerGatePerMinute;
+    private final double meanStayMinutes;
+    private final double[] typeWeights; // indexed by VehicleType ordinal
+    private final Random random;
+    
+    long arrivals, parkedCount, rejected, departures;
+    long[] rejectedByType = new long[VehicleType.values().length];
+    int peakOccupancy;
+    
+    public ParkingSimulator(ParkingManager manager, List<Gate> gates, double arrivalsPerGatePerMinute,
+                            double meanStayMinutes, double[] typeWeights, long seed){
+        this.manager = manager;
+        this.gates = gates;
+        this.arrivalsPerGatePerMinute = arrivalsPerGatePerMinute;
+        this.meanStayMinutes = meanStayMinutes;
+        this.typeWeights = typeWeights;
+        this.random = new Random(seed);
+    }
+    
+    private double exponential(double mean){
+        return -mean * Math.log(1 - random.nextDouble());
+    }
+    
+    private VehicleType pickType(){
+        double total = 0;
+        for(double w : typeWeights) total += w;
+        double r = random.nextDouble() * total;
+        for(VehicleType type : VehicleType.values()){
+            r -= typeWeights[type.ordinal()];
+            if(r < 0) return type;
+        }
+        return VehicleType.CAR;
+    }
+    
+    public void run(double durationMinutes, double speedup) throws InterruptedException{
+        PriorityQueue<Event> events = new PriorityQueue<>();
+        for(Gate gate : gates){
+            events.add(new Event(exponential(1 / arrivalsPerGatePerMinute), ARRIVAL, gate, null));
+        }
+        int nextVehicleId = 0;
+        long startNanos = System.nanoTime();
+        
+        while(!events.isEmpty() && events.peek().time <= durationMinutes){
+            Event event = events.poll();
+            if(speedup > 0){
+                long dueNanos = startNanos + (long) (event.time * 60e9 / speedup);
+                long waitNanos = dueNanos - System.nanoTime();
+                if(waitNanos > 0){
+                    Thread.sleep(waitNanos / 1_000_000, (int) (waitNanos % 1_000_000));
+                }
+            }
+            
+            if(event.kind == ARRIVAL){
+                arrivals++;
+                Vehicle vehicle = Vehicle.of(nextVehicleId++, pickType());
+                if(manager.park(vehicle, event.gate) != null){
+                    parkedCount++;
+                    peakOccupancy = Math.max(peakOccupancy, manager.occupiedCount());
+                    events.add(new Event(event.time + exponential(meanStayMinutes), DEPARTURE, event.gate, vehicle));
+                } else {
+                    rejected++;
+                    rejectedByType[vehicle.type.ordinal()]++;
+                }
+                events.add(new Event(event.time + exponential(1 / arrivalsPerGatePerMinute), ARRIVAL, event.gate, null));
+            } else {
+                manager.release(event.vehicle);
+                departures++;
+            }
+        }
+    }
+    
+    public String report(){
+        return "arrivals=" + arrivals + " parked=" + parkedCount + " departures=" + departures
+                + " rejected=" + rejected + " " + Arrays.toString(rejectedByType)
+                + " peakOccupancy=" + peakOccupancy + "/" + manager.getSpots().size();
+    }
+    
+    public static void main(String[] args) throws InterruptedException{
+        ParkingManager manager = new ParkingManager(0, 10, 400, 100);
+        manager.verbose = false;
+        List<Gate> gates = new ArrayList<>();
+        for(int g=0;g<8;g++){
+            gates.add(new Gate(g, g % 2 == 0 ? 0 : 9, (g * 125) % 500));
+        }
+        manager.setAllocationStrategy(new NearestSpotStrategy(manager.getSpots(), gates, SpotDistance.manhattan(50)));
+        
+        // 8 gates x 5 cars/min, 2h mean stay ~ 4800 vehicles at steady state against 5000 spots
+        ParkingSimulator sim = new ParkingSimulator(manager, gates, 5, 120, new double[]{0.8, 0.2}, 42);
+        long start = System.nanoTime();
+        sim.run(24 * 60, 0);
+        System.out.println(sim.report());
+        System.out.println("simulated 24h in " + (System.nanoTime() - start) / 1_000_000 + " ms");
+    }
+}
+
+/*
+    Microbenchmark for park/release as the lot fills.
+    For each fill level the lot is pre-filled, then a park + release of one extra vehicle is timed
+    repeatedly so occupancy stays constant. Reports throughput, latency percentiles and heap bytes
+    allocated per operation (HotSpot thread allocation counter).
+    Run with: java ParkingBenchmark
+*/
+class ParkingBenchmark{
+    private static final int WARMUP = 20_000;
+    private static final int MEASURED = 200_000;
+    
+    interface Setup{
+        void apply(ParkingManager manager, List<Gate> gates);
+    }
+    
+    static void run(String name, Setup setup){
+        System.out.println("== " + name);
+        System.out.println("fill%   ops/s        p50ns   p99ns   p99.9ns  bytes/op");
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+        
+        for(int fill=0; fill<=100; fill+=10){
+            ParkingManager manager = new ParkingManager(0, 20, 1000, 0);
+            manager.verbose = false;
+            List<Gate> gates = List.of(new Gate(0, 0, 0), new Gate(1, 19, 999), new Gate(2, 10, 500));
+            setup.apply(manager, gates);
+            int capacity = manager.getSpots().size();
+            int prefill = (int) ((long) capacity * fill / 100);
+            Random random = new Random(fill);
+            for(int i=0;i<prefill;i++){
+                manager.park(new Car(i), gates.get(random.nextInt(gates.size())));
+            }
+            
+            Vehicle[] probes = new Vehicle[64];
+            for(int i=0;i<probes.length;i++){
+                probes[i] = new Car(capacity + i);
+            }
+            long[] latencies = new long[MEASURED];
+            for(int i=0;i<WARMUP;i++){
+                Vehicle v = probes[i & 63];
+                manager.park(v, gates.get(i % gates.size()));
+                manager.release(v);
+            }
+            
+            long allocatedBefore = threads.getThreadAllocatedBytes(threadId);
+            long start = System.nanoTime();
+            for(int i=0;i<MEASURED;i++){
+                Vehicle v = probes[i & 63];
+                long t0 = System.nanoTime();
+                manager.park(v, gates.get(i % gates.size()));
+                manager.release(v);
+                latencies[i] = System.nanoTime() - t0;
+            }
+            long elapsed = System.nanoTime() - start;
+            long allocated = threads.getThreadAllocatedBytes(threadId) - allocatedBefore;
+            
+            Arrays.sort(latencies);
+            System.out.printf("%5d %9.0f %9d %9d %9d %9.1f%n", fill,
+                    MEASURED * 2 / (elapsed / 1e9),
+                    latencies[MEASURED / 2], latencies[MEASURED * 99 / 100], latencies[MEASURED * 999 / 1000],
+                    allocated / (MEASURED * 2.0));
+        }
+    }
+    
+    public static void main(String[] args){
+        run("FirstAvailableStrategy", (manager, gates) -> {});
+        run("NearestSpotStrategy", (manager, gates) ->
+                manager.setAllocationStrategy(new NearestSpotStrategy(manager.getSpots(), gates, SpotDistance.manhattan(100))));
     }
 }
 
@@ -170,5 +951,11 @@ class ParkingLot {
         Vehicle car = new Car(100);
         obj.park(car);
         
+        // allocate the spot closest to the gate instead of the first free one
+        Gate gate = new Gate(0, 1, 12);
+        obj.setAllocationStrategy(new NearestSpotStrategy(obj.getSpots(), List.of(gate), SpotDistance.manhattan(20)));
+        obj.park(new Car(101), gate);
+        obj.release(car);
+        
     }
 }
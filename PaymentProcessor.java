@@ -27,7 +27,13 @@ public class Transaction {
         return this.status;
     }
 
-    // Getters (optional)
+    public String getTransactionId() {
+        return transactionId;
+    }
+
+    public double getAmount() {
+        return amount;
+    }
 }
 
 
@@ -39,13 +45,26 @@ public abstract class Payment {
 
 
 public interface PaymentStrategy {
-    
+    // Identifies this provider endpoint in the payment log; unique per instance
+    String getName();
+
    boolean initiatePayment(double amount);
     boolean verifyPayment();
     void rollback();
 }
 
 public class CreditCardPayment implements PaymentStrategy {
+    private final String name;
+
+    public CreditCardPayment(String name) {
+        this.name = name;
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
     @Override
     public boolean initiatePayment(double amount) {
         System.out.println("Credit Card payment initiated: " + amount);
@@ -64,54 +83,1159 @@ public class CreditCardPayment implements PaymentStrategy {
     }
 }
 
+// Provider reference for an initiated payment, needed to verify or roll it back
+public class PaymentHandle {
+    private final String reference;
+    private final double amount;
+
+    public PaymentHandle(String reference, double amount) {
+        this.reference = reference;
+        this.amount = amount;
+    }
+
+    public String getReference() {
+        return reference;
+    }
+
+    public double getAmount() {
+        return amount;
+    }
+}
+
+
+import java.util.concurrent.CompletableFuture;
+
+// Non-blocking payment SPI: initiation returns a handle, so verification can be batched later
+public interface AsyncPaymentStrategy {
+    // Identifies this provider endpoint in the payment log; unique per instance
+    String getName();
+
+    CompletableFuture<PaymentHandle> initiatePayment(double amount);
+    CompletableFuture<Boolean> verifyPayment(PaymentHandle handle);
+    CompletableFuture<Void> rollback(PaymentHandle handle);
+}
+
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+// What a payment provider exposes on the wire: verification takes many payments per call
+public interface PaymentProvider {
+    CompletableFuture<PaymentHandle> initiate(double amount);
+    // results[i] is the verification outcome of handles.get(i)
+    CompletableFuture<boolean[]> verifyBatch(List<PaymentHandle> handles);
+    CompletableFuture<Void> rollback(PaymentHandle handle);
+}
+
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/*
+    AsyncPaymentStrategy over a PaymentProvider that coalesces verifications: the first pending
+    verification opens a linger window, and everything that arrives within it (up to maxBatch) goes
+    to the provider in one verifyBatch call. A full batch is sent immediately.
+*/
+public class BatchingPaymentStrategy implements AsyncPaymentStrategy {
+    private static final ScheduledExecutorService LINGER = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "payment-batch-linger");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private static final class Pending {
+        final PaymentHandle handle;
+        final CompletableFuture<Boolean> result = new CompletableFuture<>();
+
+        Pending(PaymentHandle handle) {
+            this.handle = handle;
+        }
+    }
+
+    private final String name;
+    private final PaymentProvider provider;
+    private final long lingerMicros;
+    private final int maxBatch;
+    private List<Pending> batch = new ArrayList<>();
+
+    public BatchingPaymentStrategy(String name, PaymentProvider provider, long lingerMicros, int maxBatch) {
+        this.name = name;
+        this.provider = provider;
+        this.lingerMicros = lingerMicros;
+        this.maxBatch = maxBatch;
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public CompletableFuture<PaymentHandle> initiatePayment(double amount) {
+        return provider.initiate(amount);
+    }
+
+    @Override
+    public CompletableFuture<Boolean> verifyPayment(PaymentHandle handle) {
+        Pending pending = new Pending(handle);
+        List<Pending> full = null;
+        boolean first;
+        synchronized (this) {
+            batch.add(pending);
+            first = batch.size() == 1;
+            if (batch.size() >= maxBatch) {
+                full = batch;
+                batch = new ArrayList<>();
+            }
+        }
+        if (full != null) {
+            send(full);
+        } else if (first) {
+            LINGER.schedule(this::flush, lingerMicros, TimeUnit.MICROSECONDS);
+        }
+        return pending.result;
+    }
+
+    @Override
+    public CompletableFuture<Void> rollback(PaymentHandle handle) {
+        return provider.rollback(handle);
+    }
+
+    private void flush() {
+        List<Pending> ready;
+        synchronized (this) {
+            if (batch.isEmpty()) return; // already sent as a full batch
+            ready = batch;
+            batch = new ArrayList<>();
+        }
+        send(ready);
+    }
+
+    private void send(List<Pending> ready) {
+        List<PaymentHandle> handles = new ArrayList<>(ready.size());
+        for (Pending p : ready) handles.add(p.handle);
+        provider.verifyBatch(handles).whenComplete((results, error) -> {
+            for (int i = 0; i < ready.size(); i++) {
+                if (error != null) ready.get(i).result.completeExceptionally(error);
+                else ready.get(i).result.complete(results[i]);
+            }
+        });
+    }
+}
+
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+// Stand-in provider: every call costs one simulated round-trip, whatever its batch size
+public class SimulatedPaymentProvider implements PaymentProvider {
+    private final ScheduledExecutorService network = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "simulated-provider");
+        t.setDaemon(true);
+        return t;
+    });
+    private final long latencyMicros;
+    private final double failureRate;
+    private final AtomicLong sequence = new AtomicLong();
+    final AtomicLong roundTrips = new AtomicLong();
+
+    public SimulatedPaymentProvider(long latencyMicros, double failureRate) {
+        this.latencyMicros = latencyMicros;
+        this.failureRate = failureRate;
+    }
+
+    public CompletableFuture<PaymentHandle> initiate(double amount) {
+        return respond(() -> new PaymentHandle("sim-" + sequence.incrementAndGet(), amount));
+    }
+
+    public CompletableFuture<boolean[]> verifyBatch(List<PaymentHandle> handles) {
+        return respond(() -> {
+            boolean[] results = new boolean[handles.size()];
+            for (int i = 0; i < results.length; i++) {
+                results[i] = ThreadLocalRandom.current().nextDouble() >= failureRate;
+            }
+            return results;
+        });
+    }
+
+    public CompletableFuture<Void> rollback(PaymentHandle handle) {
+        return respond(() -> null);
+    }
+
+    private <T> CompletableFuture<T> respond(Supplier<T> answer) {
+        roundTrips.incrementAndGet();
+        CompletableFuture<T> future = new CompletableFuture<>();
+        network.schedule(() -> future.complete(answer.get()), latencyMicros, TimeUnit.MICROSECONDS);
+        return future;
+    }
+
+    /*
+        Throughput of N payments against a 2ms provider: blocking initiate+verify on a 32 thread pool
+        (two round-trips per payment, one payment per thread at a time) versus the async SPI with
+        batched verification (all payments in flight, verifications coalesced).
+    */
+    public static void main(String[] args) throws Exception {
+        int payments = 20_000;
+        long latencyMicros = 2_000;
+
+        SimulatedPaymentProvider blockingProvider = new SimulatedPaymentProvider(latencyMicros, 0);
+        ExecutorService pool = Executors.newFixedThreadPool(32);
+        long start = System.nanoTime();
+        List<Future<Boolean>> done = new ArrayList<>();
+        for (int i = 0; i < payments; i++) {
+            done.add(pool.submit(() -> {
+                PaymentHandle handle = blockingProvider.initiate(10).join();
+                return blockingProvider.verifyBatch(List.of(handle)).join()[0];
+            }));
+        }
+        for (Future<Boolean> f : done) f.get();
+        pool.shutdown();
+        report("blocking, 32 threads", payments, start, blockingProvider.roundTrips.get());
+
+        SimulatedPaymentProvider asyncProvider = new SimulatedPaymentProvider(latencyMicros, 0);
+        AsyncPaymentStrategy strategy = new BatchingPaymentStrategy("simulated", asyncProvider, 500, 512);
+        RetryPolicy retryPolicy = new RetryPolicy();
+        start = System.nanoTime();
+        CompletableFuture<?>[] all = new CompletableFuture<?>[payments];
+        for (int i = 0; i < payments; i++) {
+            all[i] = retryPolicy.retryPaymentAsync(strategy, 10);
+        }
+        CompletableFuture.allOf(all).join();
+        report("async, batched verify", payments, start, asyncProvider.roundTrips.get());
+    }
+
+    private static void report(String label, int payments, long startNanos, long roundTrips) {
+        double seconds = (System.nanoTime() - startNanos) / 1e9;
+        System.out.printf("%-24s %8.0f payments/s  %6d round-trips%n", label, payments / seconds, roundTrips);
+    }
+}
+
+
+// Thrown without calling the provider when its circuit is open or its bulkhead is full
+public class CallNotPermittedException extends RuntimeException {
+    public CallNotPermittedException(String message) {
+        super(message);
+    }
+}
+
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+    Failure-rate circuit breaker over the last windowSize calls.
+    Outcomes go into a lock-free ring (one slot per call, claimed by an atomic cursor) with running
+    failure/recorded counters adjusted as slots are overwritten. CLOSED -> OPEN when the failure
+    rate reaches the threshold; OPEN fails fast until openMillis pass, then HALF_OPEN lets a few
+    probe calls through: all succeed -> CLOSED, any fails -> OPEN again.
+*/
+public class CircuitBreaker {
+    public enum State { CLOSED, OPEN, HALF_OPEN }
+
+    private static final int EMPTY = 0;
+    private static final int SUCCESS = 1;
+    private static final int FAILURE = 2;
+
+    private final int windowSize;
+    private final int minimumCalls;
+    private final double failureRateThreshold;
+    private final long openMillis;
+    private final int halfOpenProbes;
+
+    private final AtomicIntegerArray ring;
+    private final AtomicLong cursor = new AtomicLong();
+    private final AtomicInteger recorded = new AtomicInteger();
+    private final AtomicInteger failures = new AtomicInteger();
+
+    private final AtomicInteger state = new AtomicInteger(State.CLOSED.ordinal());
+    private volatile long openedAt;
+    private final AtomicInteger probesIssued = new AtomicInteger();
+    private final AtomicInteger probesSucceeded = new AtomicInteger();
+
+    public CircuitBreaker(int windowSize, int minimumCalls, double failureRateThreshold, long openMillis, int halfOpenProbes) {
+        this.windowSize = windowSize;
+        this.minimumCalls = minimumCalls;
+        this.failureRateThreshold = failureRateThreshold;
+        this.openMillis = openMillis;
+        this.halfOpenProbes = halfOpenProbes;
+        this.ring = new AtomicIntegerArray(windowSize);
+    }
+
+    public State getState() {
+        return State.values()[state.get()];
+    }
+
+    public boolean tryAcquire() {
+        while (true) {
+            int current = state.get();
+            if (current == State.CLOSED.ordinal()) {
+                return true;
+            }
+            if (current == State.OPEN.ordinal()) {
+                if (System.currentTimeMillis() - openedAt < openMillis) {
+                    return false;
+                }
+                if (state.compareAndSet(current, State.HALF_OPEN.ordinal())) {
+                    probesIssued.set(0);
+                    probesSucceeded.set(0);
+                }
+                continue;
+            }
+            return probesIssued.incrementAndGet() <= halfOpenProbes;
+        }
+    }
+
+    public void onSuccess() {
+        if (state.get() == State.HALF_OPEN.ordinal()) {
+            if (probesSucceeded.incrementAndGet() >= halfOpenProbes
+                    && state.compareAndSet(State.HALF_OPEN.ordinal(), State.CLOSED.ordinal())) {
+                resetWindow();
+            }
+            return;
+        }
+        record(SUCCESS);
+    }
+
+    public void onFailure() {
+        int current = state.get();
+        if (current == State.HALF_OPEN.ordinal()) {
+            trip(current);
+            return;
+        }
+        record(FAILURE);
+        int calls = recorded.get();
+        if (current == State.CLOSED.ordinal() && calls >= minimumCalls
+                && failures.get() >= failureRateThreshold * calls) {
+            trip(current);
+        }
+    }
+
+    private void record(int outcome) {
+        int slot = (int) (cursor.getAndIncrement() % windowSize);
+        int old = ring.getAndSet(slot, outcome);
+        if (old == EMPTY) recorded.incrementAndGet();
+        if (old == FAILURE) failures.decrementAndGet();
+        if (outcome == FAILURE) failures.incrementAndGet();
+    }
+
+    private void trip(int from) {
+        if (state.compareAndSet(from, State.OPEN.ordinal())) {
+            openedAt = System.currentTimeMillis();
+        }
+    }
+
+    private void resetWindow() {
+        for (int i = 0; i < windowSize; i++) {
+            int old = ring.getAndSet(i, EMPTY);
+            if (old != EMPTY) recorded.decrementAndGet();
+            if (old == FAILURE) failures.decrementAndGet();
+        }
+    }
+}
+
+
+import java.util.concurrent.Semaphore;
+import java.util.function.BooleanSupplier;
+
+/*
+    Guards one provider: a bulkhead caps its concurrent in-flight calls, so a slow provider cannot
+    take every thread, and a circuit breaker stops calling it while it is failing. Both reject
+    immediately with CallNotPermittedException instead of queueing.
+    The breaker counts payments, not calls: a successful initiatePayment keeps its breaker permit for
+    the verifyPayment that follows on the same thread, and the payment's outcome is reported once, so
+    a half-open circuit spends one probe per payment.
+    Wrap each provider once and share the instance between payments.
+*/
+public class ResilientPaymentStrategy implements PaymentStrategy {
+    private final String name;
+    private final PaymentStrategy delegate;
+    private final CircuitBreaker breaker;
+    private final Semaphore bulkhead;
+    private final ThreadLocal<Boolean> initiated = new ThreadLocal<>(); // breaker permit held for verify
+
+    public ResilientPaymentStrategy(String name, PaymentStrategy delegate, CircuitBreaker breaker, int maxConcurrentCalls) {
+        this.name = name;
+        this.delegate = delegate;
+        this.breaker = breaker;
+        this.bulkhead = new Semaphore(maxConcurrentCalls);
+    }
+
+    public ResilientPaymentStrategy(String name, PaymentStrategy delegate) {
+        this(name, delegate, new CircuitBreaker(100, 20, 0.5, 30_000, 3), 50);
+    }
+
+    public CircuitBreaker getCircuitBreaker() {
+        return breaker;
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public boolean initiatePayment(double amount) {
+        initiated.remove();
+        boolean ok = guard(() -> delegate.initiatePayment(amount), true, false);
+        if (ok) initiated.set(Boolean.TRUE);
+        return ok;
+    }
+
+    @Override
+    public boolean verifyPayment() {
+        boolean permitHeld = initiated.get() != null;
+        initiated.remove();
+        return guard(delegate::verifyPayment, !permitHeld, true);
+    }
+
+    @Override
+    public void rollback() {
+        initiated.remove();
+        // compensation must still be attempted while the circuit is open
+        delegate.rollback();
+    }
+
+    // Failures are always reported; a success only when it completes the payment
+    private boolean guard(BooleanSupplier call, boolean acquire, boolean reportSuccess) {
+        if (!bulkhead.tryAcquire()) {
+            if (!acquire) breaker.onFailure(); // the payment's permit must still report an outcome
+            throw new CallNotPermittedException(name + " bulkhead full");
+        }
+        try {
+            if (acquire && !breaker.tryAcquire()) {
+                throw new CallNotPermittedException(name + " circuit open");
+            }
+            boolean ok;
+            try {
+                ok = call.getAsBoolean();
+            } catch (RuntimeException e) {
+                breaker.onFailure();
+                throw e;
+            }
+            if (!ok) breaker.onFailure();
+            else if (reportSuccess) breaker.onSuccess();
+            return ok;
+        } finally {
+            bulkhead.release();
+        }
+    }
+}
+
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/*
+    Retries without parking threads: attempts run on an executor, and the wait between them is a task
+    on one shared timer. Blocking-SPI attempts park their thread for the provider call, so by default
+    they run on a dedicated pool rather than the common pool, which they would otherwise starve. Backoff is exponential with full jitter (uniform in [0, base * 2^attempt],
+    capped), so payments that failed together do not retry together.
+*/
 public class RetryPolicy {
     private static final int MAX_RETRIES = 3;
+    private static final int ATTEMPT_THREADS = 64;
+    private static final ScheduledExecutorService TIMER = createTimer();
+    private static final ExecutorService ATTEMPTS = createAttemptPool();
+
+    private final long baseDelayMillis;
+    private final long maxDelayMillis;
+    private final Executor executor;
+
+    public RetryPolicy() {
+        this(1000, 8000, ATTEMPTS);
+    }
+
+    public RetryPolicy(long baseDelayMillis, long maxDelayMillis, Executor executor) {
+        this.baseDelayMillis = baseDelayMillis;
+        this.maxDelayMillis = maxDelayMillis;
+        this.executor = executor;
+    }
 
     public boolean retryPayment(PaymentStrategy payment, double amount) {
-        for (int i = 0; i < MAX_RETRIES; i++) {
-            waitForNextAttempt(i);
-            if (payment.initiatePayment(amount) && payment.verifyPayment()) {
-                return true;
+        return retryPaymentAsync(payment, amount).join() == TransactionStatus.SUCCESS;
+    }
+
+    // Completes with SUCCESS, or FAILED once MAX_RETRIES attempts have failed; never exceptionally
+    public CompletableFuture<TransactionStatus> retryPaymentAsync(PaymentStrategy payment, double amount) {
+        return retry(() -> CompletableFuture.supplyAsync(
+                () -> payment.initiatePayment(amount) && payment.verifyPayment(), executor));
+    }
+
+    public CompletableFuture<TransactionStatus> retryPaymentAsync(AsyncPaymentStrategy payment, double amount) {
+        return retryPaymentAsync(payment, amount, handle -> CompletableFuture.completedFuture(null));
+    }
+
+    /*
+        Async SPI: an initiated payment that is not verified true (false, timeout, batch failure) is
+        rolled back before the next attempt, so a retry never charges twice. If that rollback fails
+        the payment's state is unknown: retrying stops and the result is PENDING, for reconciliation.
+        onInitiated sees every handle before it is verified and may delay verification (e.g. until
+        the handle is durably logged, so a crash can still roll it back).
+    */
+    public CompletableFuture<TransactionStatus> retryPaymentAsync(AsyncPaymentStrategy payment, double amount,
+                                                                  Function<PaymentHandle, CompletableFuture<Void>> onInitiated) {
+        return retry(() -> payment.initiatePayment(amount).thenCompose(handle -> onInitiated.apply(handle)
+                .thenCompose(logged -> payment.verifyPayment(handle))
+                .handle((verified, error) -> error == null && Boolean.TRUE.equals(verified)
+                        ? CompletableFuture.completedFuture(true)
+                        : rollback(payment, handle, error))
+                .thenCompose(f -> f)));
+    }
+
+    // Completes false, or with the verification error so the attempt still counts as failed
+    private static CompletableFuture<Boolean> rollback(AsyncPaymentStrategy payment, PaymentHandle handle, Throwable verifyError) {
+        CompletableFuture<Void> rolledBack;
+        try {
+            rolledBack = payment.rollback(handle);
+        } catch (RuntimeException e) {
+            rolledBack = CompletableFuture.failedFuture(e);
+        }
+        return rolledBack.handle((v, rollbackError) -> {
+            if (rollbackError != null) {
+                throw new RollbackFailedException(handle, rollbackError);
+            }
+            if (verifyError != null) {
+                throw verifyError instanceof CompletionException ? (CompletionException) verifyError : new CompletionException(verifyError);
             }
+            return false;
+        });
+    }
+
+    static final class RollbackFailedException extends RuntimeException {
+        RollbackFailedException(PaymentHandle handle, Throwable cause) {
+            super("Rollback of " + handle.getReference() + " failed", cause);
         }
-        return false;
     }
 
-    public void waitForNextAttempt(int attempt) {
+    private CompletableFuture<TransactionStatus> retry(Supplier<CompletableFuture<Boolean>> call) {
+        CompletableFuture<TransactionStatus> result = new CompletableFuture<>();
+        attempt(call, 0, result);
+        return result;
+    }
+
+    private void attempt(Supplier<CompletableFuture<Boolean>> call, int attempt, CompletableFuture<TransactionStatus> result) {
+        CompletableFuture<Boolean> outcome;
         try {
-            Thread.sleep((attempt + 1) * 1000L); // 1s, 2s, 3s
+            outcome = call.get();
+        } catch (RuntimeException e) {
+            outcome = CompletableFuture.failedFuture(e);
+        }
+        outcome.whenComplete((success, error) -> {
+            Throwable cause = error instanceof CompletionException ? error.getCause() : error;
+            if (cause instanceof CallNotPermittedException) {
+                result.complete(TransactionStatus.FAILED); // provider is shedding load: retrying only adds to it
+            } else if (cause instanceof RollbackFailedException) {
+                result.complete(TransactionStatus.PENDING); // money may have moved: reconcile, never retry
+            } else if (cause == null && success) {
+                result.complete(TransactionStatus.SUCCESS);
+            } else if (attempt + 1 >= MAX_RETRIES) {
+                result.complete(TransactionStatus.FAILED);
+            } else {
+                TIMER.schedule(() -> attempt(call, attempt + 1, result), backoffMillis(attempt), TimeUnit.MILLISECONDS);
+            }
+        });
+    }
+
+    long backoffMillis(int attempt) {
+        long ceiling = Math.min(maxDelayMillis, baseDelayMillis << Math.min(attempt, 30));
+        return ThreadLocalRandom.current().nextLong(ceiling + 1);
+    }
+
+    private static ExecutorService createAttemptPool() {
+        AtomicInteger count = new AtomicInteger();
+        return Executors.newFixedThreadPool(ATTEMPT_THREADS, r -> {
+            Thread t = new Thread(r, "payment-attempt-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    private static ScheduledExecutorService createTimer() {
+        ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1, r -> {
+            Thread t = new Thread(r, "payment-retry-timer");
+            t.setDaemon(true);
+            return t;
+        });
+        timer.setRemoveOnCancelPolicy(true);
+        return timer;
+    }
+}
+
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*
+    Idempotency keys with atomic claim-or-return-existing semantics.
+    The first caller for a key becomes the owner and must complete the returned future; concurrent
+    duplicates get the same future and wait on the in-flight result. Once it completes only the
+    outcome is kept for the rest of the TTL (not the future and whatever its callbacks captured), and
+    later duplicates get it in an already completed future. Exceptional results are dropped so the key
+    can be retried.
+    Expiry is segmented: keys are also filed into coarse time buckets in a ring, and a whole bucket is
+    swept at once when its time passes (amortized into claim calls), so memory is bounded by the
+    keys seen in one TTL window and no per-entry timers exist.
+*/
+public class IdempotencyStore<V> {
+    public static final class Claim<V> {
+        private final boolean owner;
+        private final CompletableFuture<V> result;
+
+        Claim(boolean owner, CompletableFuture<V> result) {
+            this.owner = owner;
+            this.result = result;
+        }
+
+        public boolean isOwner() {
+            return owner;
+        }
+
+        public CompletableFuture<V> result() {
+            return result;
+        }
+    }
+
+    private static final class Entry<V> {
+        final long expiresAt;
+        volatile CompletableFuture<V> inFlight = new CompletableFuture<>(); // null once completed
+        volatile V outcome; // written before inFlight is cleared
+
+        Entry(long expiresAt) {
+            this.expiresAt = expiresAt;
+        }
+
+        CompletableFuture<V> result() {
+            CompletableFuture<V> future = inFlight;
+            return future != null ? future : CompletableFuture.completedFuture(outcome);
+        }
+    }
+
+    private static final class Bucket {
+        final ConcurrentLinkedQueue<String> keys = new ConcurrentLinkedQueue<>();
+    }
+
+    private final Map<String, Entry<V>> entries = new ConcurrentHashMap<>();
+    private final long ttlMillis;
+    private final long bucketMillis;
+    private final Bucket[] buckets;
+    private final ReentrantLock sweepLock = new ReentrantLock();
+    private volatile long sweptUpTo; // bucket number; everything before it has been swept
+
+    public IdempotencyStore(long ttlMillis, int segments) {
+        this.ttlMillis = ttlMillis;
+        this.bucketMillis = Math.max(1, ttlMillis / segments);
+        // +2: the bucket being filled and the one just expiring are both live
+        this.buckets = new Bucket[segments + 2];
+        for (int i = 0; i < buckets.length; i++) {
+            buckets[i] = new Bucket();
+        }
+        this.sweptUpTo = System.currentTimeMillis() / bucketMillis;
+    }
+
+    public Claim<V> claim(String key) {
+        long now = System.currentTimeMillis();
+        sweepIfDue(now);
+        while (true) {
+            Entry<V> fresh = new Entry<>(now + ttlMillis);
+            Entry<V> existing = entries.putIfAbsent(key, fresh);
+            if (existing == null) {
+                return new Claim<>(true, own(key, fresh));
+            }
+            if (existing.expiresAt > now) {
+                return new Claim<>(false, existing.result());
+            }
+            // expired but not swept yet: take it over atomically
+            if (entries.replace(key, existing, fresh)) {
+                return new Claim<>(true, own(key, fresh));
+            }
+        }
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    private CompletableFuture<V> own(String key, Entry<V> entry) {
+        buckets[(int) ((entry.expiresAt / bucketMillis) % buckets.length)].keys.add(key);
+        CompletableFuture<V> result = entry.inFlight;
+        result.whenComplete((value, error) -> {
+            if (error != null) {
+                entries.remove(key, entry);
+            } else {
+                entry.outcome = value;
+                entry.inFlight = null;
+            }
+        });
+        return result;
+    }
+
+    private void sweepIfDue(long now) {
+        long current = now / bucketMillis;
+        if (current <= sweptUpTo || !sweepLock.tryLock()) {
+            return;
+        }
+        try {
+            // no need to walk more than one lap of the ring after a long idle period
+            for (long b = Math.max(sweptUpTo, current - buckets.length); b < current; b++) {
+                ConcurrentLinkedQueue<String> bucket = buckets[(int) (b % buckets.length)].keys;
+                List<String> notYetDue = new ArrayList<>();
+                String key;
+                while ((key = bucket.poll()) != null) {
+                    Entry<V> entry = entries.get(key);
+                    if (entry == null) continue;
+                    if (entry.expiresAt <= now) {
+                        entries.remove(key, entry);
+                    } else if ((entry.expiresAt / bucketMillis) % buckets.length == b % buckets.length) {
+                        notYetDue.add(key); // filed a lap ahead, keep it for its own turn
+                    }
+                }
+                bucket.addAll(notYetDue);
+            }
+            sweptUpTo = current;
+        } finally {
+            sweepLock.unlock();
+        }
+    }
+}
+
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+
+/*
+    Write-ahead log of payment state transitions in memory-mapped, fixed-size regions.
+    Record: int length | byte status | long amount bits | short idLen | id | short providerLen | provider
+            | short referenceLen | reference | int MAGIC. The reference is the provider's PaymentHandle
+            reference once an async payment is initiated (empty before that and for the blocking SPI).
+    A length of -1 means "continue in the next region"; a zero length or missing MAGIC marks the end.
+
+    append() returns a future that completes once the record is on disk. One flusher thread does
+    the group commit: it forces everything written so far with a single msync and then completes
+    every waiter that the sync covered, so concurrent payments share syncs.
+
+    open() scans the newest log, keeps the last state of every transaction, and starts a new log
+    generation holding only the transactions still PENDING; recoveredPending() exposes them.
+*/
+public class PaymentStateLog implements Closeable {
+    private static final int RECORD_MAGIC = 0x50534C48;
+    private static final int NEXT_REGION = -1;
+    private static final long REGION_SIZE = 64L << 20;
+
+    public static final class Entry {
+        public final String transactionId;
+        public final String provider;
+        public final String reference; // null when no handle was logged
+        public final double amount;
+        public final TransactionStatus status;
+
+        Entry(String transactionId, String provider, String reference, double amount, TransactionStatus status) {
+            this.transactionId = transactionId;
+            this.provider = provider;
+            this.reference = reference;
+            this.amount = amount;
+            this.status = status;
+        }
+    }
+
+    private static final class Waiter {
+        final long offset;
+        final CompletableFuture<Void> durable = new CompletableFuture<>();
+
+        Waiter(long offset) {
+            this.offset = offset;
+        }
+    }
+
+    private final Path dir;
+    private final FileChannel channel;
+    private final long generation;
+    private final Map<String, Entry> pending;
+    private MappedByteBuffer region;
+    private long regionIndex;
+    private long written;
+    private final ArrayDeque<Waiter> waiters = new ArrayDeque<>();
+    private final Thread flusher;
+    private volatile boolean closed;
+
+    private PaymentStateLog(Path dir, long generation, Map<String, Entry> pending) throws IOException {
+        this.dir = dir;
+        this.generation = generation;
+        this.pending = pending;
+        this.channel = FileChannel.open(file(dir, generation), StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.region = channel.map(FileChannel.MapMode.READ_WRITE, 0, REGION_SIZE);
+        this.flusher = new Thread(this::flushLoop, "payment-log-flusher");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    public static PaymentStateLog open(Path dir) throws IOException {
+        Files.createDirectories(dir);
+        TreeMap<Long, Path> logs = logs(dir);
+        Map<String, Entry> latest = new LinkedHashMap<>();
+        long last = logs.isEmpty() ? 0 : logs.lastKey();
+        if (!logs.isEmpty()) {
+            // a crash during a previous rotation can leave the older generation behind; it is complete, the newer one may not be
+            for (Path log : logs.values()) {
+                scan(log, latest);
+            }
+        }
+        latest.values().removeIf(e -> e.status != TransactionStatus.PENDING);
+
+        PaymentStateLog log = new PaymentStateLog(dir, last + 1, latest);
+        CompletableFuture<Void> carried = CompletableFuture.completedFuture(null);
+        for (Entry e : latest.values()) {
+            carried = log.append(e.transactionId, e.provider, e.reference, e.amount, e.status);
+        }
+        carried.join();
+        for (Path old : logs.values()) {
+            Files.deleteIfExists(old);
+        }
+        return log;
+    }
+
+    // Transactions whose last durable state was PENDING when the log was opened and are still unresolved
+    public synchronized Collection<Entry> recoveredPending() {
+        return new ArrayList<>(pending.values());
+    }
+
+    public CompletableFuture<Void> append(String transactionId, String provider, double amount, TransactionStatus status) {
+        return append(transactionId, provider, null, amount, status);
+    }
+
+    public CompletableFuture<Void> append(String transactionId, String provider, String reference, double amount, TransactionStatus status) {
+        byte[] id = transactionId.getBytes(StandardCharsets.UTF_8);
+        byte[] prov = provider.getBytes(StandardCharsets.UTF_8);
+        byte[] ref = reference == null ? new byte[0] : reference.getBytes(StandardCharsets.UTF_8);
+        int length = 1 + 8 + 2 + id.length + 2 + prov.length + 2 + ref.length;
+        Waiter waiter;
+        synchronized (this) {
+            if (closed) {
+                return CompletableFuture.failedFuture(new IllegalStateException("Payment log closed"));
+            }
+            if (region.remaining() < 4 + length + 4) {
+                nextRegion();
+            }
+            int start = region.position();
+            region.putInt(0); // length goes in last so a torn record reads as the end of the log
+            region.put((byte) status.ordinal());
+            region.putLong(Double.doubleToLongBits(amount));
+            region.putShort((short) id.length).put(id);
+            region.putShort((short) prov.length).put(prov);
+            region.putShort((short) ref.length).put(ref);
+            region.putInt(RECORD_MAGIC);
+            region.putInt(start, length);
+            if (status != TransactionStatus.PENDING) {
+                pending.remove(transactionId);
+            }
+            written = regionIndex * REGION_SIZE + region.position();
+            waiter = new Waiter(written);
+            waiters.add(waiter);
+            notifyAll();
+        }
+        return waiter.durable;
+    }
+
+    private void nextRegion() {
+        if (region.remaining() >= 4) {
+            region.putInt(NEXT_REGION);
+        }
+        region.force();
+        regionIndex++;
+        try {
+            region = channel.map(FileChannel.MapMode.READ_WRITE, regionIndex * REGION_SIZE, REGION_SIZE);
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not extend payment log", e);
+        }
+    }
+
+    private void flushLoop() {
+        while (true) {
+            MappedByteBuffer toForce;
+            long target;
+            synchronized (this) {
+                while (waiters.isEmpty() && !closed) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (waiters.isEmpty()) {
+                    return;
+                }
+                toForce = region;
+                target = written;
+            }
+            toForce.force(); // earlier regions were forced when they filled up
+            synchronized (this) {
+                Waiter w;
+                while ((w = waiters.peek()) != null && w.offset <= target) {
+                    waiters.poll().durable.complete(null);
+                }
+            }
+        }
+    }
+
+    private static void scan(Path log, Map<String, Entry> latest) throws IOException {
+        try (FileChannel in = FileChannel.open(log, StandardOpenOption.READ)) {
+            long size = in.size();
+            for (long offset = 0; offset < size; offset += REGION_SIZE) {
+                ByteBuffer buf = in.map(FileChannel.MapMode.READ_ONLY, offset, Math.min(REGION_SIZE, size - offset));
+                while (true) {
+                    if (buf.remaining() < 4) break;
+                    int length = buf.getInt();
+                    if (length == NEXT_REGION) break;
+                    if (length <= 0 || buf.remaining() < length + 4) return;
+                    int start = buf.position();
+                    if (buf.getInt(start + length) != RECORD_MAGIC) return;
+                    TransactionStatus status = TransactionStatus.values()[buf.get()];
+                    double amount = Double.longBitsToDouble(buf.getLong());
+                    byte[] id = new byte[buf.getShort()];
+                    buf.get(id);
+                    byte[] prov = new byte[buf.getShort()];
+                    buf.get(prov);
+                    byte[] ref = new byte[buf.getShort()];
+                    buf.get(ref);
+                    buf.position(start + length + 4);
+                    String transactionId = new String(id, StandardCharsets.UTF_8);
+                    String reference = ref.length == 0 ? null : new String(ref, StandardCharsets.UTF_8);
+                    latest.put(transactionId, new Entry(transactionId, new String(prov, StandardCharsets.UTF_8), reference, amount, status));
+                }
+                if (buf.capacity() < REGION_SIZE) return;
+            }
+        }
+    }
+
+    private static Path file(Path dir, long generation) {
+        return dir.resolve(String.format("payments-%016d.log", generation));
+    }
+
+    private static TreeMap<Long, Path> logs(Path dir) throws IOException {
+        TreeMap<Long, Path> found = new TreeMap<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, "payments-*.log")) {
+            for (Path file : stream) {
+                String name = file.getFileName().toString();
+                found.put(Long.parseLong(name.substring("payments-".length(), name.length() - ".log".length())), file);
+            }
+        }
+        return found;
+    }
+
+    public void close() throws IOException {
+        synchronized (this) {
+            closed = true;
+            notifyAll();
+        }
+        try {
+            flusher.join();
         } catch (InterruptedException e) {
             Thread.currentThread().interrupt();
         }
+        region.force();
+        channel.close();
     }
 }
 
 
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
 
 public class PaymentProcessor {
-    private Map<String, Transaction> transactions = new HashMap<>();
+    private static final long IDEMPOTENCY_TTL_MILLIS = 24 * 60 * 60 * 1000L;
+
+    private final IdempotencyStore<TransactionStatus> idempotency = new IdempotencyStore<>(IDEMPOTENCY_TTL_MILLIS, 24);
     private RetryPolicy retryPolicy = new RetryPolicy();
+    private final PaymentStateLog stateLog; // null: state is kept in memory only
+    private final Map<String, Object> providers = new ConcurrentHashMap<>(); // log name -> strategy instance
+
+    public PaymentProcessor() {
+        this(null);
+    }
+
+    public PaymentProcessor(PaymentStateLog stateLog) {
+        this.stateLog = stateLog;
+    }
+
+    public Map<String, TransactionStatus> recover(Map<String, PaymentStrategy> providers, Function<String, TransactionStatus> reconciler) {
+        return recover(providers, Map.of(), reconciler);
+    }
+
+    /*
+        Resolves transactions that were PENDING when the process stopped. The reconciler asks the
+        provider for the real outcome (null if unknown); unknown ones are rolled back through the
+        provider registered under the getName() they were logged with: async providers roll back
+        the logged handle, blocking ones call rollback(). An entry is only marked FAILED once its rollback
+        was issued; without a matching provider or a logged handle it stays PENDING (and is returned
+        as such) so a later recover() with the right providers can still resolve it.
+    */
+    public Map<String, TransactionStatus> recover(Map<String, PaymentStrategy> providers, Map<String, AsyncPaymentStrategy> asyncProviders,
+                                                  Function<String, TransactionStatus> reconciler) {
+        Map<String, TransactionStatus> resolved = new LinkedHashMap<>();
+        if (stateLog == null) {
+            return resolved;
+        }
+        List<CompletableFuture<Void>> writes = new ArrayList<>();
+        for (PaymentStateLog.Entry entry : stateLog.recoveredPending()) {
+            TransactionStatus status = reconciler.apply(entry.transactionId);
+            if (status != TransactionStatus.SUCCESS) {
+                status = rollBack(entry, providers.get(entry.provider), asyncProviders.get(entry.provider));
+            }
+            resolved.put(entry.transactionId, status);
+            if (status != TransactionStatus.PENDING) {
+                writes.add(stateLog.append(entry.transactionId, entry.provider, entry.reference, entry.amount, status));
+            }
+        }
+        CompletableFuture.allOf(writes.toArray(new CompletableFuture<?>[0])).join();
+        return resolved;
+    }
+
+    // FAILED once a rollback was issued, PENDING if there was nothing to issue it through
+    private static TransactionStatus rollBack(PaymentStateLog.Entry entry, PaymentStrategy provider, AsyncPaymentStrategy asyncProvider) {
+        if (asyncProvider != null && entry.reference != null) {
+            asyncProvider.rollback(new PaymentHandle(entry.reference, entry.amount)).join();
+            return TransactionStatus.FAILED;
+        }
+        if (asyncProvider != null) {
+            System.out.println("No handle logged for " + entry.transactionId + ", left PENDING for reconciliation");
+            return TransactionStatus.PENDING;
+        }
+        if (provider != null) {
+            provider.rollback();
+            return TransactionStatus.FAILED;
+        }
+        System.out.println("No provider " + entry.provider + " to roll back " + entry.transactionId + ", left PENDING");
+        return TransactionStatus.PENDING;
+    }
+
+    // Duplicates of an in-flight or recent key wait for and return the original outcome
+    public TransactionStatus processPayment(String idempotencyKey, PaymentStrategy paymentMethod, double amount) {
+        return processPaymentAsync(idempotencyKey, paymentMethod, amount).join();
+    }
 
-    public void processPayment(String idempotencyKey, PaymentStrategy paymentMethod, double amount) {
-        if (transactions.containsKey(idempotencyKey)) {
+    // Async SPI; failed attempts are rolled back by the retry policy itself
+    public CompletableFuture<TransactionStatus> processPaymentAsync(String idempotencyKey, AsyncPaymentStrategy paymentMethod, double amount) {
+        String provider = providerName(paymentMethod.getName(), paymentMethod);
+        IdempotencyStore.Claim<TransactionStatus> claim = idempotency.claim(idempotencyKey);
+        if (!claim.isOwner()) {
+            return claim.result();
+        }
+        Transaction txn = new Transaction(idempotencyKey, amount);
+        // each handle is logged before verification, so recovery can roll back exactly that payment
+        record(txn, provider)
+                .thenCompose(v -> retryPolicy.retryPaymentAsync(paymentMethod, amount,
+                        handle -> record(txn, provider, handle.getReference())))
+                .thenCompose(status -> {
+                    txn.setStatus(status);
+                    // PENDING: the last durable record already names the handle recovery must reconcile
+                    return status == TransactionStatus.PENDING ? CompletableFuture.completedFuture(null) : record(txn, provider);
+                })
+                .whenComplete((v, error) -> complete(claim, txn, error));
+        return claim.result();
+    }
+
+    // No thread is blocked while the payment waits between retries
+    public CompletableFuture<TransactionStatus> processPaymentAsync(String idempotencyKey, PaymentStrategy paymentMethod, double amount) {
+        String provider = providerName(paymentMethod.getName(), paymentMethod);
+        IdempotencyStore.Claim<TransactionStatus> claim = idempotency.claim(idempotencyKey);
+        if (!claim.isOwner()) {
             System.out.println("Duplicate transaction detected");
-            return;
+            return claim.result();
         }
 
         Transaction txn = new Transaction(idempotencyKey, amount);
-        transactions.put(idempotencyKey, txn);
+        // PENDING must be durable before money can move, so recovery knows to reconcile it
+        record(txn, provider)
+                .thenCompose(v -> retryPolicy.retryPaymentAsync(paymentMethod, amount))
+                .thenCompose(status -> {
+                    if (status == TransactionStatus.SUCCESS) {
+                        txn.setStatus(TransactionStatus.SUCCESS);
+                        System.out.println("Transaction succeeded");
+                    } else {
+                        txn.setStatus(TransactionStatus.FAILED);
+                        paymentMethod.rollback();
+                        System.out.println("Transaction failed after retries");
+                    }
+                    return record(txn, provider);
+                })
+                .whenComplete((v, error) -> complete(claim, txn, error));
+        return claim.result();
+    }
+
+    // Name recovery uses to find the provider again; one name must never stand for two strategies
+    private String providerName(String name, Object strategy) {
+        Object existing = providers.putIfAbsent(name, strategy);
+        if (existing != null && existing != strategy) {
+            throw new IllegalArgumentException("Provider name " + name + " is already used by another strategy");
+        }
+        return name;
+    }
+
+    private CompletableFuture<Void> record(Transaction txn, String provider) {
+        return record(txn, provider, null);
+    }
 
-        boolean success = retryPolicy.retryPayment(paymentMethod, amount);
-        if (success) {
-            txn.setStatus(TransactionStatus.SUCCESS);
-            System.out.println("Transaction succeeded");
+    private CompletableFuture<Void> record(Transaction txn, String provider, String reference) {
+        if (stateLog == null) {
+            return CompletableFuture.completedFuture(null);
+        }
+        return stateLog.append(txn.getTransactionId(), provider, reference, txn.getAmount(), txn.getStatus());
+    }
+
+    private static void complete(IdempotencyStore.Claim<TransactionStatus> claim, Transaction txn, Throwable error) {
+        if (error != null) {
+            claim.result().completeExceptionally(error);
         } else {
-            txn.setStatus(TransactionStatus.FAILED);
-            paymentMethod.rollback();
-            System.out.println("Transaction failed after retries");
+            claim.result().complete(txn.getStatus());
         }
     }
 }
-
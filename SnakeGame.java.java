@@ -1,135 +1,494 @@
-import java.util.*;
-import java.io.*;
-
-class Position {
-    int row, col;
-
-    public Position(int row, int col) {
-        this.row = row;
-        this.col = col;
-    }
-
-    @Override
-    public boolean equals(Object o) {
-        if (!(o instanceof Position)) return false;
-        Position other = (Position) o;
-        return this.row == other.row && this.col == other.col;
-    }
-
-    @Override
-    public int hashCode() {
-        return Objects.hash(row, col);
-    }
-}
-
-public class SnakeGame {
-    Deque<Position> snake;
-    Queue<Position> food;
-    Set<Position> visited;
-
-    int rows, cols;
-    boolean gameOver;
-
-    char direction;
-
-    public SnakeGame(int rows, int cols) {
-        gameOver = false;
-        snake = new LinkedList<>();
-        food = new LinkedList<>();
-        visited = new HashSet<>();
-
-        this.rows = rows;
-        this.cols = cols;
-
-        Position start = new Position(0, 0);
-        snake.addFirst(start);
-        visited.add(start);
-
-        direction = 'R';
-        generateFood();
-    }
-
-    public void move(char input) {
-        direction = input;
-
-        Position head = snake.peekFirst();
-        int row = head.row;
-        int col = head.col;
-
-        if (input == 'U') row--;
-        else if (input == 'D') row++;
-        else if (input == 'L') col--;
-        else if (input == 'R') col++;
-
-        Position newHead = new Position(row, col);
-
-        if (!validMove(newHead)) {
-            System.out.println("💀 Game Over!");
-            gameOver = true;
-            return;
-        }
-
-        snake.addFirst(newHead);
-        visited.add(newHead);
-
-        if (!food.isEmpty() && food.peek().equals(newHead)) {
-            food.poll(); // eat food
-            generateFood(); // place new food
-        } else {
-            Position tail = snake.removeLast(); // move forward
-            visited.remove(tail);
-        }
-
-        printBoard();
-    }
-
-    public void generateFood() {
-        Random rand = new Random();
-        Position pos;
-        do {
-            pos = new Position(rand.nextInt(rows), rand.nextInt(cols));
-        } while (visited.contains(pos));
-        food.add(pos);
-    }
-
-    public boolean validMove(Position position) {
-        int r = position.row;
-        int c = position.col;
-        if (r < 0 || r >= rows || c < 0 || c >= cols || visited.contains(position)) {
-            return false;
-        }
-        return true;
-    }
-
-    private void printBoard() {
-        char[][] board = new char[rows][cols];
-        for (char[] row : board) Arrays.fill(row, '.');
-
-        for (Position p : snake) board[p.row][p.col] = 'S';
-        if (!food.isEmpty()) {
-            Position f = food.peek();
-            board[f.row][f.col] = 'F';
-        }
-
-        for (char[] row : board) {
-            for (char c : row) System.out.print(c + " ");
-            System.out.println();
-        }
-        System.out.println();
-    }
-
-    public static void main(String[] args) throws IOException {
-        SnakeGame game = new SnakeGame(10, 10);
-        BufferedReader br = new BufferedReader(new InputStreamReader(System.in));
-
-        System.out.println("🟢 Snake Game Started! Use U/D/L/R to move.");
-        game.printBoard();
-
-        while (!game.gameOver) {
-            System.out.print("Move: ");
-            String input = br.readLine();
-            if (input.isEmpty()) continue;
-            game.move(input.charAt(0));
-        }
-    }
-}
+import java.util.*;
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+class Position {
+    int row, col;
+
+    public Position(int row, int col) {
+        this.row = row;
+        this.col = col;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof Position)) return false;
+        Position other = (Position) o;
+        return this.row == other.row && this.col == other.col;
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(row, col);
+    }
+}
+
+/*
+    Cells are numbered row * cols + col. The body is a ring buffer of cells (head at headIndex, tail
+    at tailIndex) and the occupancy grid is a bitset, so a tick is a few array writes and never
+    allocates. tick() is the headless engine; move() wraps it with the console output.
+    Free cells are kept in an array with swap-remove (freeIndex maps a cell to its slot, -1 when
+    occupied), so food is a uniform pick among free[0..freeCount) in O(1) at any fill level.
+    Eating the food when no free cell is left wins the game.
+*/
+public class SnakeGame {
+    static final int UP = 0, DOWN = 1, LEFT = 2, RIGHT = 3;
+    static final int MOVED = 0, ATE = 1, DIED = 2, WON = 3;
+
+    final int rows, cols;
+    private final int[] body;
+    private final long[] occupied;
+    private final int[] free, freeIndex;
+    private int freeCount;
+    private int headIndex, tailIndex, length;
+    private int headRow, headCol;
+    private int food = -1;
+    private final Random rand;
+    private char[] frame;
+
+    int score;
+    long ticks;
+    boolean gameOver;
+    boolean won;
+    char direction;
+
+    public SnakeGame(int rows, int cols) {
+        this(rows, cols, new Random());
+    }
+
+    public SnakeGame(int rows, int cols, long seed) {
+        this(rows, cols, new Random(seed));
+    }
+
+    private SnakeGame(int rows, int cols, Random rand) {
+        this.rows = rows;
+        this.cols = cols;
+        this.rand = rand;
+        body = new int[rows * cols];
+        occupied = new long[(rows * cols + 63) >>> 6];
+        free = new int[rows * cols];
+        freeIndex = new int[rows * cols];
+        reset();
+    }
+
+    // Restarts with food placement reseeded, so the same seed and moves give the same game
+    public void reset(long seed) {
+        rand.setSeed(seed);
+        reset();
+    }
+
+    // Back to a one-cell snake at (0, 0), reusing the buffers
+    public void reset() {
+        Arrays.fill(occupied, 0);
+        for (int cell = 0; cell < free.length; cell++) {
+            free[cell] = cell;
+            freeIndex[cell] = cell;
+        }
+        freeCount = free.length;
+        headIndex = tailIndex = 0;
+        length = 1;
+        headRow = headCol = 0;
+        body[0] = 0;
+        occupy(0);
+        score = 0;
+        ticks = 0;
+        gameOver = false;
+        won = false;
+        direction = 'R';
+        generateFood();
+    }
+
+    // Advances one step in dir (UP, DOWN, LEFT, RIGHT); returns MOVED, ATE, DIED or WON
+    public int tick(int dir) {
+        if (gameOver) return won ? WON : DIED;
+        int row = headRow, col = headCol;
+        if (dir == UP) row--;
+        else if (dir == DOWN) row++;
+        else if (dir == LEFT) col--;
+        else if (dir == RIGHT) col++;
+
+        int cell = row * cols + col;
+        // the tail has not moved yet, so running into it is a collision
+        if (row < 0 || row >= rows || col < 0 || col >= cols || isOccupied(cell)) {
+            gameOver = true;
+            return DIED;
+        }
+        ticks++;
+        headRow = row;
+        headCol = col;
+        headIndex = headIndex + 1 == body.length ? 0 : headIndex + 1;
+        body[headIndex] = cell;
+        occupy(cell);
+        length++;
+
+        if (cell == food) {
+            score++;
+            generateFood();
+            return won ? WON : ATE;
+        }
+        vacate(body[tailIndex]);
+        tailIndex = tailIndex + 1 == body.length ? 0 : tailIndex + 1;
+        length--;
+        return MOVED;
+    }
+
+    public void move(char input) {
+        direction = input;
+        int dir = input == 'U' ? UP : input == 'D' ? DOWN : input == 'L' ? LEFT : input == 'R' ? RIGHT : -1;
+        int result = tick(dir);
+        if (result == DIED) {
+            System.out.println("💀 Game Over!");
+            return;
+        }
+        if (result == WON) {
+            printBoard();
+            System.out.println("🏆 You win! The snake fills the board.");
+            return;
+        }
+        printBoard();
+    }
+
+    public void generateFood() {
+        if (freeCount == 0) {
+            food = -1;
+            won = true;
+            gameOver = true;
+            return;
+        }
+        food = free[rand.nextInt(freeCount)];
+    }
+
+    private void occupy(int cell) {
+        occupied[cell >>> 6] |= 1L << cell;
+        int slot = freeIndex[cell], last = free[--freeCount];
+        free[slot] = last;
+        freeIndex[last] = slot;
+        freeIndex[cell] = -1;
+    }
+
+    private void vacate(int cell) {
+        occupied[cell >>> 6] &= ~(1L << cell);
+        free[freeCount] = cell;
+        freeIndex[cell] = freeCount++;
+    }
+
+    public boolean validMove(Position position) {
+        int r = position.row;
+        int c = position.col;
+        return r >= 0 && r < rows && c >= 0 && c < cols && !isOccupied(r * cols + c);
+    }
+
+    // Whether a step in dir would survive this tick
+    boolean canMove(int dir) {
+        int row = headRow + (dir == UP ? -1 : dir == DOWN ? 1 : 0);
+        int col = headCol + (dir == LEFT ? -1 : dir == RIGHT ? 1 : 0);
+        return row >= 0 && row < rows && col >= 0 && col < cols && !isOccupied(row * cols + col);
+    }
+
+    boolean isOccupied(int cell) {
+        return (occupied[cell >>> 6] & (1L << cell)) != 0;
+    }
+
+    int head() {
+        return body[headIndex];
+    }
+
+    int food() {
+        return food;
+    }
+
+    int length() {
+        return length;
+    }
+
+    // One reused frame: "x " per cell plus a newline per row
+    private void printBoard() {
+        int width = cols * 2 + 1;
+        if (frame == null) {
+            frame = new char[rows * width];
+            for (int r = 0; r < rows; r++) {
+                for (int c = 0; c < cols; c++) frame[r * width + c * 2 + 1] = ' ';
+                frame[r * width + width - 1] = '\n';
+            }
+        }
+        for (int cell = 0; cell < rows * cols; cell++) {
+            frame[cell / cols * width + cell % cols * 2] = cell == food ? 'F' : isOccupied(cell) ? 'S' : '.';
+        }
+        System.out.print(frame);
+        System.out.println();
+    }
+
+    public static void main(String[] args) throws IOException {
+        SnakeGame game = new SnakeGame(10, 10);
+        BufferedReader br = new BufferedReader(new InputStreamReader(System.in));
+
+        System.out.println("🟢 Snake Game Started! Use U/D/L/R to move.");
+        game.printBoard();
+
+        while (!game.gameOver) {
+            System.out.print("Move: ");
+            String input = br.readLine();
+            if (input.isEmpty()) continue;
+            game.move(input.charAt(0));
+        }
+    }
+}
+
+// Picks the next direction; random is seeded per game so a seed always replays the same game
+interface MovePolicy {
+    int next(SnakeGame game, SplittableRandom random);
+}
+
+class SnakePolicies {
+    // Uniformly random among the directions that survive this tick
+    static final MovePolicy RANDOM_SAFE = (game, random) -> {
+        int safe = 0, choice = SnakeGame.UP;
+        for (int dir = 0; dir < 4; dir++) {
+            if (game.canMove(dir) && random.nextInt(++safe) == 0) choice = dir;
+        }
+        return choice;
+    };
+
+    // Straight toward the food, turning to the next safe direction when blocked
+    static final MovePolicy GREEDY = (game, random) -> {
+        int head = game.head(), food = game.food(), cols = game.cols;
+        int row = head / cols, col = head % cols, foodRow = food / cols, foodCol = food % cols;
+        int preferred = foodRow < row ? SnakeGame.UP : foodRow > row ? SnakeGame.DOWN : foodCol < col ? SnakeGame.LEFT : SnakeGame.RIGHT;
+        for (int i = 0; i < 4; i++) {
+            int dir = (preferred + i) & 3;
+            if (game.canMove(dir)) return dir;
+        }
+        return preferred;
+    };
+
+    // Boustrophedon Hamiltonian cycle (even row count): never collides, so every game ends in a win
+    static final MovePolicy HAMILTONIAN = (game, random) -> {
+        int head = game.head(), cols = game.cols, row = head / cols, col = head % cols;
+        if (col == 0) return row > 0 ? SnakeGame.UP : SnakeGame.RIGHT;
+        if (row == 0) return col < cols - 1 ? SnakeGame.RIGHT : SnakeGame.DOWN;
+        if ((row & 1) == 1) return row == game.rows - 1 || col > 1 ? SnakeGame.LEFT : SnakeGame.DOWN;
+        return col < cols - 1 ? SnakeGame.RIGHT : SnakeGame.DOWN;
+    };
+}
+
+/*
+    Headless tick throughput: a bot that turns toward the food and otherwise takes the first free
+    direction, restarting (reset, no allocation) when it dies. Reports ticks/s and bytes allocated
+    per tick for a few board sizes, then plays boards to completion along a Hamiltonian cycle to
+    exercise food placement at every fill level up to the win.
+*/
+class SnakeBenchmark {
+    private static final long TICKS = 20_000_000;
+
+    public static void main(String[] args) {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+        for (int size : new int[]{10, 100, 1000}) {
+            SnakeGame game = new SnakeGame(size, size, 42);
+            MovePolicy policy = SnakePolicies.GREEDY;
+            for (int i = 0; i < 1_000_000; i++) {
+                if (game.tick(policy.next(game, null)) == SnakeGame.DIED) game.reset();
+            }
+            long games = 0, eaten = 0;
+            long allocatedBefore = threads.getThreadAllocatedBytes(threadId);
+            long start = System.nanoTime();
+            for (long i = 0; i < TICKS; i++) {
+                if (game.tick(policy.next(game, null)) == SnakeGame.DIED) {
+                    games++;
+                    eaten += game.score;
+                    game.reset();
+                }
+            }
+            long elapsed = System.nanoTime() - start;
+            long allocated = threads.getThreadAllocatedBytes(threadId) - allocatedBefore;
+            System.out.printf("%4dx%-4d %6.1f M ticks/s  %.3f bytes/tick  %d games, %.1f food/game%n", size, size,
+                    TICKS / (elapsed / 1e3), (double) allocated / TICKS, games, games == 0 ? 0.0 : (double) eaten / games);
+        }
+
+        // Filling the board: food placement stays O(1) up to the last free cell
+        for (int size : new int[]{10, 50, 100}) {
+            SnakeGame game = new SnakeGame(size, size, 7);
+            MovePolicy policy = SnakePolicies.HAMILTONIAN;
+            long start = System.nanoTime();
+            while (game.tick(policy.next(game, null)) != SnakeGame.WON) {
+                if (game.gameOver) throw new IllegalStateException("cycle bot died");
+            }
+            long elapsed = System.nanoTime() - start;
+            System.out.printf("%4dx%-4d won after %d ticks, length %d, %.1f ms%n", size, size, game.ticks,
+                    game.length(), elapsed / 1e6);
+        }
+    }
+}
+
+/*
+    Headless batch runner: plays games across all cores, each fully determined by its seed (food
+    placement and the policy's random both derive from it), so any game can be replayed exactly.
+    Each worker reuses one SnakeGame and claims seeds in chunks; results go into per-game primitive
+    arrays. A game also ends as STARVED when the snake goes rows * cols * 2 ticks without eating,
+    which bounds policies that circle forever. The move checksum proves a replay took the same path.
+*/
+class SnakeSimulator {
+    static final int STARVED = 4;
+    private static final int CHUNK = 64;
+    private static final long POLICY_SALT = 0x9E3779B97F4A7C15L;
+
+    static final class Results {
+        final long[] seeds, checksums, ticks;
+        final int[] scores, lengths, outcomes;
+        long nanos;
+
+        Results(int games) {
+            seeds = new long[games];
+            checksums = new long[games];
+            scores = new int[games];
+            lengths = new int[games];
+            ticks = new long[games];
+            outcomes = new int[games];
+        }
+
+        int count(int outcome) {
+            int n = 0;
+            for (int o : outcomes) {
+                if (o == outcome) n++;
+            }
+            return n;
+        }
+
+        long totalTicks() {
+            long total = 0;
+            for (long t : ticks) total += t;
+            return total;
+        }
+
+        int best() {
+            int best = 0;
+            for (int i = 1; i < scores.length; i++) {
+                if (scores[i] > scores[best]) best = i;
+            }
+            return best;
+        }
+
+        @Override
+        public String toString() {
+            int games = seeds.length;
+            if (games == 0) {
+                return String.format("0 games%n");
+            }
+            return String.format("%d games in %d ms (%.0f games/s, %.1f M ticks/s)%n", games, nanos / 1_000_000,
+                    games * 1e9 / nanos, totalTicks() * 1e3 / nanos)
+                    + String.format("  outcomes  died %d  won %d  starved %d%n", count(SnakeGame.DIED), count(SnakeGame.WON), count(STARVED))
+                    + distribution("score", scores) + distribution("length", lengths) + distribution("ticks", ticks);
+        }
+
+        private static String distribution(String name, int[] values) {
+            long[] widened = new long[values.length];
+            for (int i = 0; i < values.length; i++) widened[i] = values[i];
+            return distribution(name, widened);
+        }
+
+        private static String distribution(String name, long[] values) {
+            long[] sorted = values.clone();
+            Arrays.sort(sorted);
+            long sum = 0;
+            for (long v : sorted) sum += v;
+            int n = sorted.length;
+            return String.format("  %-7s mean %9.1f  p10 %7d  p50 %7d  p90 %7d  p99 %7d  max %7d%n", name, (double) sum / n,
+                    sorted[n / 10], sorted[n / 2], sorted[n * 9 / 10], sorted[n * 99 / 100], sorted[n - 1]);
+        }
+    }
+
+    private final int rows, cols;
+    private final MovePolicy policy;
+
+    SnakeSimulator(int rows, int cols, MovePolicy policy) {
+        if (policy == SnakePolicies.HAMILTONIAN && (rows & 1) != 0) {
+            throw new IllegalArgumentException("the Hamiltonian cycle needs an even row count, got " + rows);
+        }
+        this.rows = rows;
+        this.cols = cols;
+        this.policy = policy;
+    }
+
+    // Plays games with seeds baseSeed .. baseSeed + games - 1 on the given number of threads
+    Results run(int games, long baseSeed, int threads) throws InterruptedException {
+        Results results = new Results(games);
+        AtomicInteger next = new AtomicInteger();
+        Thread[] workers = new Thread[threads];
+        long start = System.nanoTime();
+        for (int t = 0; t < threads; t++) {
+            workers[t] = new Thread(() -> {
+                SnakeGame game = new SnakeGame(rows, cols, baseSeed);
+                for (int from; (from = next.getAndAdd(CHUNK)) < games; ) {
+                    for (int i = from; i < Math.min(from + CHUNK, games); i++) {
+                        long seed = baseSeed + i;
+                        results.seeds[i] = seed;
+                        results.checksums[i] = play(game, seed, null);
+                        results.outcomes[i] = outcome(game);
+                        results.scores[i] = game.score;
+                        results.lengths[i] = game.length();
+                        results.ticks[i] = game.ticks;
+                    }
+                }
+            }, "snake-sim-" + t);
+            workers[t].start();
+        }
+        for (Thread worker : workers) worker.join();
+        results.nanos = System.nanoTime() - start;
+        return results;
+    }
+
+    // Plays one seed to the end on this thread, calling onTick (may be null) after every move; returns the checksum
+    long replay(long seed, Consumer<SnakeGame> onTick) {
+        return play(new SnakeGame(rows, cols, seed), seed, onTick);
+    }
+
+    static int outcome(SnakeGame game) {
+        return game.won ? SnakeGame.WON : game.gameOver ? SnakeGame.DIED : STARVED;
+    }
+
+    private long play(SnakeGame game, long seed, Consumer<SnakeGame> onTick) {
+        game.reset(seed);
+        SplittableRandom random = new SplittableRandom(seed ^ POLICY_SALT);
+        int starveLimit = rows * cols * 2, sinceFood = 0;
+        long checksum = 1;
+        while (!game.gameOver && sinceFood <= starveLimit) {
+            int dir = policy.next(game, random);
+            checksum = checksum * 31 + dir;
+            sinceFood = game.tick(dir) == SnakeGame.ATE ? 0 : sinceFood + 1;
+            if (onTick != null) onTick.accept(game);
+        }
+        return checksum;
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        int games = args.length > 0 ? Integer.parseInt(args[0]) : 10_000;
+        int size = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+        int threads = Runtime.getRuntime().availableProcessors();
+        Map<String, MovePolicy> policies = new LinkedHashMap<>();
+        policies.put("random-safe", SnakePolicies.RANDOM_SAFE);
+        policies.put("greedy", SnakePolicies.GREEDY);
+        policies.put("hamiltonian", SnakePolicies.HAMILTONIAN);
+
+        for (Map.Entry<String, MovePolicy> entry : policies.entrySet()) {
+            if (entry.getValue() == SnakePolicies.HAMILTONIAN && (size & 1) != 0) {
+                System.out.println("== " + entry.getKey() + " skipped: needs an even board size, got " + size);
+                continue;
+            }
+            SnakeSimulator simulator = new SnakeSimulator(size, size, entry.getValue());
+            Results results = simulator.run(games, 1, threads);
+            System.out.println("== " + entry.getKey() + " on " + size + "x" + size + ", " + threads + " threads");
+            System.out.print(results);
+            if (games == 0) continue;
+
+            int best = results.best();
+            long[] replayed = new long[1];
+            long checksum = simulator.replay(results.seeds[best], game -> replayed[0] = game.score);
+            if (checksum != results.checksums[best] || replayed[0] != results.scores[best]) {
+                throw new IllegalStateException("replay of seed " + results.seeds[best] + " diverged");
+            }
+            System.out.println("  best seed " + results.seeds[best] + " (score " + results.scores[best] + ") replays identically");
+        }
+    }
+}